@@ -0,0 +1,103 @@
+package mod_cfml;
+
+/**
+ * Licensed Under the LGPL 3.0
+ * http://www.opensource.org/licenses/lgpl-3.0.html
+ *
+ * Home Page:
+ * http://www.modcfml.org/
+ */
+
+// java
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// Remembers with which DocRoot and context config the files in a host's conf and work directories were created,
+// in a file next to the ROOT.xml. When a host is created again with the same DocRoot and config, these directories
+// can be kept, together with the classes compiled in them.
+final class ContextFingerprint {
+
+	// not an .xml file, so HostConfig does not try to deploy it
+	static final String FILE_NAME = "mod_cfml.fingerprint";
+
+	private static final String ENCODING = "UTF-8";
+
+	private ContextFingerprint() {
+	}
+
+	static String create(String docRoot, String contextXml, String version) {
+		return "docRoot=" + docRoot + "\n"
+				+ "config=" + sha1(contextXml) + "\n"
+				+ "version=" + version + "\n";
+	}
+
+	// true if the conf directory was created with the given fingerprint, and its ROOT.xml has not been changed since
+	static boolean matches(File confDir, String fingerprint, String contextXml) {
+		byte[] recorded = read(new File(confDir, FILE_NAME));
+		byte[] rootXml = read(new File(confDir, "ROOT.xml"));
+		if (recorded == null || rootXml == null) {
+			return false;
+		}
+		try {
+			// ROOT.xml is written in the platform encoding, so it is read back that way
+			return fingerprint.equals(new String(recorded, ENCODING)) && contextXml.equals(new String(rootXml));
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	static void write(File confDir, String fingerprint) throws IOException {
+		OutputStream out = new FileOutputStream(new File(confDir, FILE_NAME));
+		try {
+			out.write(fingerprint.getBytes(ENCODING));
+		} finally {
+			out.close();
+		}
+	}
+
+	// returns null if the file does not exist or cannot be read
+	private static byte[] read(File file) {
+		if (!file.isFile()) {
+			return null;
+		}
+		try {
+			InputStream in = new FileInputStream(file);
+			try {
+				ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+				byte[] buffer = new byte[4096];
+				int len;
+				while ((len = in.read(buffer)) != -1) {
+					out.write(buffer, 0, len);
+				}
+				return out.toByteArray();
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static String sha1(String text) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(text.getBytes(ENCODING));
+			StringBuilder hex = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// every Java platform has SHA-1
+			throw new IllegalStateException(e);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
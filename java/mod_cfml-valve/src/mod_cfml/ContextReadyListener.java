@@ -0,0 +1,94 @@
+package mod_cfml;
+
+/**
+ * Licensed Under the LGPL 3.0
+ * http://www.opensource.org/licenses/lgpl-3.0.html
+ *
+ * Home Page:
+ * http://www.modcfml.org/
+ */
+
+// java
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+// apache tomcat
+import org.apache.catalina.Container;
+import org.apache.catalina.ContainerEvent;
+import org.apache.catalina.ContainerListener;
+import org.apache.catalina.Context;
+import org.apache.catalina.Host;
+import org.apache.catalina.Lifecycle;
+import org.apache.catalina.LifecycleEvent;
+import org.apache.catalina.LifecycleListener;
+import org.apache.catalina.LifecycleState;
+
+// Lets requests wait until the ROOT context of a host has been started by Tomcat,
+// instead of sleeping and checking the file system for the context files.
+final class ContextReadyListener implements ContainerListener, LifecycleListener {
+
+	private final CountDownLatch done = new CountDownLatch(1);
+	private volatile Container rootContext = null;
+
+	// start listening to the given host. Must be called before the host is added to the engine,
+	// but can also be used for hosts which are running already.
+	void watch(Host host) {
+		host.addContainerListener(this);
+		Container child = host.findChild("");
+		if (child != null) {
+			watchContext(child);
+		}
+	}
+
+	void unwatch(Host host) {
+		host.removeContainerListener(this);
+		Container child = rootContext;
+		if (child != null) {
+			child.removeLifecycleListener(this);
+		}
+	}
+
+	// returns true if the ROOT context has started within the given time
+	boolean await(long timeoutMillis) {
+		try {
+			done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return isStarted();
+	}
+
+	boolean isStarted() {
+		Container child = rootContext;
+		return child != null && child.getState() == LifecycleState.STARTED;
+	}
+
+	@Override
+	public void containerEvent(ContainerEvent event) {
+		if (Container.ADD_CHILD_EVENT.equals(event.getType()) && event.getData() instanceof Context
+				&& "".equals(((Context) event.getData()).getPath())) {
+			watchContext((Container) event.getData());
+		}
+	}
+
+	@Override
+	public void lifecycleEvent(LifecycleEvent event) {
+		String type = event.getType();
+		// A context which fails to start never sends AFTER_START; Tomcat stops it instead.
+		// Either way, there is nothing left to wait for.
+		if (Lifecycle.AFTER_START_EVENT.equals(type) || Lifecycle.STOP_EVENT.equals(type)
+				|| Lifecycle.AFTER_STOP_EVENT.equals(type) || event.getLifecycle().getState() == LifecycleState.FAILED) {
+			done.countDown();
+		}
+	}
+
+	private void watchContext(Container child) {
+		rootContext = child;
+		child.addLifecycleListener(this);
+		// Tomcat tells us the context was added only after it tried to start it. A context which failed to start
+		// has been stopped again by then (or is FAILED), so every state from STARTED on means there is nothing to wait for.
+		if (child.getState().compareTo(LifecycleState.STARTED) >= 0) {
+			done.countDown();
+		}
+	}
+}
@@ -0,0 +1,102 @@
+package mod_cfml;
+
+/**
+ * Licensed Under the LGPL 3.0
+ * http://www.opensource.org/licenses/lgpl-3.0.html
+ *
+ * Home Page:
+ * http://www.modcfml.org/
+ */
+
+// java
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Removes old conf/work directories without making a request wait for it: the directory is renamed to a "tombstone"
+// next to it, which is an instant operation, and the tombstone is deleted by a background thread.
+// Tombstones which are left behind after a crash are deleted at the next startup.
+final class DirCleaner {
+
+	private static final String TOMBSTONE_MARKER = ".mod_cfml-deleted-";
+
+	private static final AtomicInteger tombstoneNr = new AtomicInteger();
+
+	private static final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "mod_cfml-cleanup");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		}
+	});
+
+	private DirCleaner() {
+	}
+
+	// Moves the directory out of the way, and deletes it in the background. Returns false if the directory could not
+	// be renamed (eg. because files in it are locked on Windows); the caller then has to delete it itself.
+	static boolean moveAway(File dir) {
+		File tombstone = new File(dir.getParentFile(), dir.getName() + TOMBSTONE_MARKER
+				+ System.currentTimeMillis() + "-" + tombstoneNr.incrementAndGet());
+		if (!dir.renameTo(tombstone)) {
+			return false;
+		}
+		deleteLater(tombstone);
+		return true;
+	}
+
+	// deletes the tombstones a previous run did not get to, in the given directory
+	static int removeTombstones(File parent) {
+		File[] children = parent.listFiles();
+		if (children == null) {
+			return 0;
+		}
+		int count = 0;
+		for (File child : children) {
+			if (child.getName().contains(TOMBSTONE_MARKER)) {
+				deleteLater(child);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static void deleteLater(final File tombstone) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (!deleteTree(tombstone)) {
+					ValveLog.warn(0, "Could not completely delete old directory {}", tombstone);
+				}
+			}
+		});
+	}
+
+	// Unlike core.deleteDir, this does not stop at the first file which cannot be deleted, but removes as much as possible.
+	// Symbolic links are deleted, but not followed.
+	private static boolean deleteTree(File file) {
+		boolean success = true;
+		if (file.isDirectory() && !isSymlink(file)) {
+			File[] children = file.listFiles();
+			if (children != null) {
+				for (File child : children) {
+					success &= deleteTree(child);
+				}
+			}
+		}
+		return file.delete() && success;
+	}
+
+	private static boolean isSymlink(File file) {
+		try {
+			File canonicalParent = file.getParentFile().getCanonicalFile();
+			return !new File(canonicalParent, file.getName()).getCanonicalFile().equals(new File(canonicalParent, file.getName()).getAbsoluteFile());
+		} catch (Exception e) {
+			return true;
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package mod_cfml;
+
+/**
+ * Licensed Under the LGPL 3.0
+ * http://www.opensource.org/licenses/lgpl-3.0.html
+ *
+ * Home Page:
+ * http://www.modcfml.org/
+ */
+
+// java
+import java.io.File;
+import java.net.MalformedURLException;
+import java.util.concurrent.ConcurrentHashMap;
+
+// apache tomcat
+import org.apache.catalina.Container;
+import org.apache.catalina.Context;
+import org.apache.catalina.Host;
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.startup.ContextConfig;
+
+// Deploys the ROOT context of a host created by mod_cfml straight from the ROOT.xml we wrote, without a HostConfig.
+// A HostConfig scans the appBase and config directory of its host on every background run; with hundreds of hosts,
+// that is a lot of file system work for contexts which are only ever defined by one file. Instead, this class keeps
+// an eye on just the ROOT.xml and the WEB-INF/web.xml of all hosts, plus the global conf/context.xml and conf/web.xml,
+// from the background process of the valve: a changed ROOT.xml or context.xml redeploys the context, a changed web.xml
+// reloads it, like HostConfig would do.
+final class DirectDeployer {
+
+	private final ConcurrentHashMap<String, Deployed> deployed = new ConcurrentHashMap<String, Deployed>();
+
+	// part of the config of every context
+	private final File globalContextXml;
+	private final File globalWebXml;
+	private long globalContextXmlModified;
+	private long globalWebXmlModified;
+
+	// confDir: the conf directory of Tomcat, with the global context.xml and web.xml
+	DirectDeployer(File confDir) {
+		globalContextXml = new File(confDir, "context.xml");
+		globalWebXml = new File(confDir, "web.xml");
+		globalContextXmlModified = globalContextXml.lastModified();
+		globalWebXmlModified = globalWebXml.lastModified();
+	}
+
+	// creates the ROOT context of the given host, which Tomcat starts right away if the host is running
+	void deploy(Host host, File rootXml, String docRoot) throws MalformedURLException {
+		Deployed entry = new Deployed(host, rootXml, new File(docRoot, "WEB-INF/web.xml"));
+		StandardContext context = new StandardContext();
+		context.setName("");
+		context.setPath("");
+		context.setDocBase(docRoot);
+		// ContextConfig reads the ROOT.xml, on top of the global conf/context.xml and conf/web.xml
+		context.setConfigFile(rootXml.toURI().toURL());
+		context.addLifecycleListener(new ContextConfig());
+		deployed.put(host.getName(), entry);
+		host.addChild(context);
+	}
+
+	// stop watching the files of the given host, eg. because the host was removed
+	void forget(String hostName) {
+		deployed.remove(hostName);
+	}
+
+	// Redeploys or reloads the contexts whose ROOT.xml or web.xml changed since the last check, or all of them if the
+	// global context.xml or web.xml changed. Costs two file checks per host, plus two for the global files.
+	// Only called from the background thread.
+	void checkResources() {
+		long contextXmlModified = globalContextXml.lastModified();
+		long webXmlModified = globalWebXml.lastModified();
+		boolean redeployAll = contextXmlModified != globalContextXmlModified;
+		boolean reloadAll = webXmlModified != globalWebXmlModified;
+		globalContextXmlModified = contextXmlModified;
+		globalWebXmlModified = webXmlModified;
+		if (redeployAll && !deployed.isEmpty()) {
+			ValveLog.info(0, "{} changed; redeploying the contexts of all {} hosts", globalContextXml, deployed.size());
+		} else if (reloadAll && !deployed.isEmpty()) {
+			ValveLog.info(0, "{} changed; reloading the contexts of all {} hosts", globalWebXml, deployed.size());
+		}
+		for (Deployed entry : deployed.values()) {
+			checkResources(entry, redeployAll, reloadAll);
+		}
+	}
+
+	private void checkResources(Deployed entry, boolean redeployAll, boolean reloadAll) {
+		long rootXmlModified = entry.rootXml.lastModified();
+		long webXmlModified = entry.webXml.lastModified();
+		boolean redeploy = redeployAll || rootXmlModified != entry.rootXmlModified;
+		boolean reload = reloadAll || webXmlModified != entry.webXmlModified;
+		if (!redeploy && !reload) {
+			return;
+		}
+		Container context = entry.host.findChild("");
+		try {
+			if (redeploy) {
+				if (context != null) {
+					entry.host.removeChild(context);
+				}
+				if (rootXmlModified == 0) {
+					// the ROOT.xml was removed, and so is the context
+					ValveLog.info(0, "ROOT.xml of host [{}] was removed; undeployed the context", entry.host.getName());
+					deployed.remove(entry.host.getName(), entry);
+				} else {
+					if (rootXmlModified != entry.rootXmlModified) {
+						ValveLog.info(0, "ROOT.xml of host [{}] changed; redeploying the context", entry.host.getName());
+					}
+					deploy(entry.host, entry.rootXml, docBaseOf(context, entry));
+				}
+			} else if (context instanceof Context) {
+				if (webXmlModified != entry.webXmlModified) {
+					ValveLog.info(0, "{} changed; reloading the context of host [{}]", entry.webXml, entry.host.getName());
+				}
+				entry.webXmlModified = webXmlModified;
+				((Context) context).reload();
+			}
+		} catch (Exception e) {
+			ValveLog.error(0, "Could not redeploy the context of host [{}]: {}", entry.host.getName(), e);
+			entry.rootXmlModified = rootXmlModified;
+			entry.webXmlModified = webXmlModified;
+		}
+	}
+
+	private static String docBaseOf(Container context, Deployed entry) {
+		if (context instanceof Context && ((Context) context).getDocBase() != null) {
+			return ((Context) context).getDocBase();
+		}
+		return entry.webXml.getParentFile().getParent();
+	}
+
+	private static final class Deployed {
+		final Host host;
+		final File rootXml;
+		final File webXml;
+		volatile long rootXmlModified;
+		volatile long webXmlModified;
+
+		Deployed(Host host, File rootXml, File webXml) {
+			this.host = host;
+			this.rootXml = rootXml;
+			this.webXml = webXml;
+			this.rootXmlModified = rootXml.lastModified();
+			this.webXmlModified = webXml.lastModified();
+		}
+	}
+}
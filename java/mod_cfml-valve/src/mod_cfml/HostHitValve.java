@@ -0,0 +1,55 @@
+package mod_cfml;
+
+/**
+ * Licensed Under the LGPL 3.0
+ * http://www.opensource.org/licenses/lgpl-3.0.html
+ *
+ * Home Page:
+ * http://www.modcfml.org/
+ */
+
+// java
+import java.io.IOException;
+
+// servlet
+import javax.servlet.ServletException;
+
+// apache tomcat
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+
+// Added to every host created by mod_cfml, to keep track of how often and how recently the host is used.
+final class HostHitValve extends ValveBase {
+
+	private final HostRegistry.Record record;
+	// false keeps this valve out of JMX (leanHosts); it has nothing to show there anyway
+	private final boolean registerMBean;
+
+	HostHitValve(HostRegistry.Record record, boolean registerMBean) {
+		super(true);
+		this.record = record;
+		this.registerMBean = registerMBean;
+	}
+
+	@Override
+	protected void initInternal() throws LifecycleException {
+		if (registerMBean) {
+			super.initInternal();
+		}
+	}
+
+	@Override
+	protected void destroyInternal() throws LifecycleException {
+		if (registerMBean) {
+			super.destroyInternal();
+		}
+	}
+
+	@Override
+	public void invoke(Request request, Response response) throws IOException, ServletException {
+		record.hit();
+		getNext().invoke(request, response);
+	}
+}
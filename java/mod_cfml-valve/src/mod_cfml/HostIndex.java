@@ -0,0 +1,130 @@
+package mod_cfml;
+
+/**
+ * Licensed Under the LGPL 3.0
+ * http://www.opensource.org/licenses/lgpl-3.0.html
+ *
+ * Home Page:
+ * http://www.modcfml.org/
+ */
+
+// java
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// apache tomcat
+import org.apache.catalina.Container;
+import org.apache.catalina.ContainerEvent;
+import org.apache.catalina.ContainerListener;
+import org.apache.catalina.Context;
+import org.apache.catalina.Engine;
+import org.apache.catalina.Host;
+
+// All host names and aliases of an engine, the host each of them belongs to, and the ROOT context of every host.
+// Engine.findChild locks the list of hosts on every call, and aliases can only be found by going through all hosts;
+// this index answers both without locking. It is kept up to date by the add/remove events of the engine (hosts) and
+// of every host (aliases and contexts), which Tomcat fires on the thread making the change, right after the change.
+// Tomcat only fires the add event once the new child has started, so the hosts we create ourselves are added
+// before that, with addHost; otherwise, requests for a host which is starting would try to create it again.
+final class HostIndex implements ContainerListener {
+
+	// host name => host
+	private final ConcurrentHashMap<String, Host> hosts = new ConcurrentHashMap<String, Host>();
+	// host name or alias => host
+	private final ConcurrentHashMap<String, Host> owners = new ConcurrentHashMap<String, Host>();
+	// host => its ROOT context
+	private final ConcurrentHashMap<Host, Container> rootContexts = new ConcurrentHashMap<Host, Container>();
+
+	private Engine engine = null;
+
+	// starts following the hosts of the given engine
+	synchronized void watch(Engine engine) {
+		unwatch();
+		this.engine = engine;
+		// listen first, so no host which is added meanwhile is missed
+		engine.addContainerListener(this);
+		for (Container child : engine.findChildren()) {
+			if (child instanceof Host) {
+				addHost((Host) child);
+			}
+		}
+	}
+
+	synchronized void unwatch() {
+		if (engine == null) {
+			return;
+		}
+		engine.removeContainerListener(this);
+		for (Host host : hosts.values()) {
+			host.removeContainerListener(this);
+		}
+		hosts.clear();
+		owners.clear();
+		rootContexts.clear();
+		engine = null;
+	}
+
+	// the host with the given name, not looking at aliases. Null if there is no such host.
+	Host findHost(String name) {
+		return hosts.get(name);
+	}
+
+	// the host with the given name or alias. Null if there is no such host.
+	Host findOwner(String nameOrAlias) {
+		return owners.get(nameOrAlias);
+	}
+
+	// The ROOT context of the given host. Null if the host has none, or if it is still being started.
+	Container findRootContext(Host host) {
+		return rootContexts.get(host);
+	}
+
+	@Override
+	public void containerEvent(ContainerEvent event) {
+		String type = event.getType();
+		Object data = event.getData();
+		if (Container.ADD_CHILD_EVENT.equals(type) && data instanceof Host) {
+			addHost((Host) data);
+		} else if (Container.REMOVE_CHILD_EVENT.equals(type) && data instanceof Host) {
+			removeHost((Host) data);
+		} else if (Container.ADD_CHILD_EVENT.equals(type) && event.getContainer() instanceof Host && isRootContext(data)) {
+			rootContexts.put((Host) event.getContainer(), (Container) data);
+		} else if (Container.REMOVE_CHILD_EVENT.equals(type) && event.getContainer() instanceof Host && isRootContext(data)) {
+			rootContexts.remove(event.getContainer(), data);
+		} else if (Host.ADD_ALIAS_EVENT.equals(type) && event.getContainer() instanceof Host && data != null) {
+			owners.put(data.toString(), (Host) event.getContainer());
+		} else if (Host.REMOVE_ALIAS_EVENT.equals(type) && event.getContainer() instanceof Host && data != null) {
+			owners.remove(data.toString(), event.getContainer());
+		}
+	}
+
+	// Adds the given host, which may not have been added to the engine yet. Adding the same host again does nothing.
+	void addHost(Host host) {
+		if (hosts.put(host.getName(), host) != host) {
+			host.addContainerListener(this);
+		}
+		owners.put(host.getName(), host);
+		for (String alias : host.findAliases()) {
+			owners.put(alias, host);
+		}
+		Container rootContext = host.findChild("");
+		if (rootContext != null) {
+			rootContexts.put(host, rootContext);
+		}
+	}
+
+	void removeHost(Host host) {
+		host.removeContainerListener(this);
+		hosts.remove(host.getName(), host);
+		rootContexts.remove(host);
+		for (Map.Entry<String, Host> owner : owners.entrySet()) {
+			if (owner.getValue() == host) {
+				owners.remove(owner.getKey(), host);
+			}
+		}
+	}
+
+	private static boolean isRootContext(Object child) {
+		return child instanceof Context && "".equals(((Context) child).getPath());
+	}
+}
@@ -0,0 +1,122 @@
+package mod_cfml;
+
+/**
+ * Licensed Under the LGPL 3.0
+ * http://www.opensource.org/licenses/lgpl-3.0.html
+ *
+ * Home Page:
+ * http://www.modcfml.org/
+ */
+
+// java
+import java.util.concurrent.ConcurrentHashMap;
+
+// Turns the incoming Host and X-Webserver-Context headers into the Tomcat host name and alias.
+// The results are cached by raw header value, so repeated requests for the same site do no string work at all.
+final class HostNames {
+
+	private final ConcurrentHashMap<String, Normalized> cache = new ConcurrentHashMap<String, Normalized>();
+	private final int maxSize;
+
+	HostNames(int maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	// returns the host name and alias for the given raw header values
+	Normalized normalize(String rawHost, String rawContext) {
+		if (rawContext != null && rawContext.isEmpty()) {
+			rawContext = null;
+		}
+		if (rawHost == null) {
+			return create(null, rawContext);
+		}
+		Normalized names = cache.get(rawHost);
+		if (names != null && (rawContext == null ? names.rawContext == null : rawContext.equals(names.rawContext))) {
+			return names;
+		}
+		names = create(rawHost, rawContext);
+		// keep the cache bounded; a flood of random host headers just empties it every now and then
+		if (cache.size() >= maxSize) {
+			cache.clear();
+		}
+		cache.put(rawHost, names);
+		return names;
+	}
+
+	private static Normalized create(String rawHost, String rawContext) {
+		String host = rawHost;
+		// the X-Webserver-Context header might not be available
+		String mainHost = rawContext == null ? rawHost : rawContext;
+		// host names should be lowercase, but Tomcat will not complain, just convert it to lowercase after we use it as a hostname/alias name
+		if (mainHost != null) {
+			// remove the port number from the host value if it's present
+			mainHost = core.removePortFromHost(mainHost.toLowerCase());
+			// X-Webserver-Context might contain characters not allowed by Tomcat
+			// to be used as the VirtualHost HostName (eg. spaces, semi-colons, colons, slashes)
+			mainHost = escapeUnsafeChars(mainHost);
+		}
+		if (host != null) {
+			host = core.removePortFromHost(host.toLowerCase());
+		}
+		return new Normalized(rawContext, mainHost, host);
+	}
+
+	// replaces every character except [a-z0-9._-] with "-chrNN-", where NN is the character code.
+	// Returns the same String instance if there is nothing to replace.
+	static String escapeUnsafeChars(String value) {
+		int len = value.length();
+		int i = 0;
+		while (i < len && isSafeChar(value.charAt(i))) {
+			i++;
+		}
+		if (i == len) {
+			return value;
+		}
+		StringBuilder escaped = new StringBuilder(len + 16);
+		escaped.append(value, 0, i);
+		for (; i < len; i++) {
+			char c = value.charAt(i);
+			if (isSafeChar(c)) {
+				escaped.append(c);
+			} else {
+				escaped.append("-chr").append((int) c).append('-');
+				// a surrogate pair is one character, named after its first half
+				if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(value.charAt(i + 1))) {
+					i++;
+				}
+			}
+		}
+		return escaped.toString();
+	}
+
+	private static boolean isSafeChar(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '.' || c == '_' || c == '-';
+	}
+
+	// true for a number without leading zero, like "8080"
+	static boolean isPortNumber(String value) {
+		int len = value.length();
+		if (len == 0 || value.charAt(0) < '1' || value.charAt(0) > '9') {
+			return false;
+		}
+		for (int i = 1; i < len; i++) {
+			char c = value.charAt(i);
+			if (c < '0' || c > '9') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static final class Normalized {
+		final String rawContext;
+		final String mainHost;
+		final String host;
+
+		Normalized(String rawContext, String mainHost, String host) {
+			this.rawContext = rawContext;
+			this.mainHost = mainHost;
+			this.host = host;
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package mod_cfml;
+
+/**
+ * Licensed Under the LGPL 3.0
+ * http://www.opensource.org/licenses/lgpl-3.0.html
+ *
+ * Home Page:
+ * http://www.modcfml.org/
+ */
+
+// java
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// apache tomcat
+import org.apache.catalina.Engine;
+
+// Creates the hosts listed in a manifest file up front, eg. during a migration, so the sites are warm before traffic
+// is switched over. The manifest has one host per line: the host name, the DocRoot, and optionally a comma-separated
+// list of aliases, separated by tabs. Empty lines and lines starting with "#" are skipped.
+// Hosts are created the same way as after a restart (see core.provisionHost): not limited by timeBetweenContexts,
+// but still by maxContexts. At most "threads" hosts are created at the same time.
+public final class HostProvisioner implements HostProvisionerMBean {
+
+	private static final String ENCODING = "UTF-8";
+
+	// the end of the names of the hosts made by measureHostFootprint; ".invalid" is never a real domain
+	static final String FOOTPRINT_HOST_SUFFIX = ".mod-cfml-footprint.invalid";
+
+	private final core valve;
+	private final Engine engine;
+	private final int threads;
+
+	HostProvisioner(core valve, Engine engine, int threads) {
+		this.valve = valve;
+		this.engine = engine;
+		this.threads = Math.max(1, threads);
+	}
+
+	@Override
+	public String provisionFromManifest(String manifestFile) {
+		File file = core.getBaseFile(manifestFile);
+		List<Entry> entries;
+		try {
+			entries = readManifest(file);
+		} catch (IOException e) {
+			ValveLog.error(0, "Could not read host manifest {}: {}", file, e);
+			return "Could not read host manifest " + file + ": " + e;
+		}
+		ValveLog.info(0, "Creating {} hosts from host manifest {}, using {} threads", entries.size(), file, threads);
+		String report = provision(entries);
+		ValveLog.write(ValveLog.INFO, 0, "Host manifest {} done:\n{}", file, report);
+		return report;
+	}
+
+	static boolean isFootprintHost(String hostName) {
+		return hostName.endsWith(FOOTPRINT_HOST_SUFFIX);
+	}
+
+	@Override
+	public String measureHostFootprint(String docRoot, int count) {
+		if (count < 1) {
+			return "count must be 1 or more";
+		}
+		List<String> hostNames = new ArrayList<String>(count);
+		try {
+			long heapBefore = usedHeapAfterGc();
+			for (int i = 1; i <= count; i++) {
+				String hostName = "host" + i + FOOTPRINT_HOST_SUFFIX;
+				String error = valve.provisionHost(engine, hostName, Collections.<String>emptyList(), docRoot, valve.nextLogNr());
+				if (error != null) {
+					return "Could not create host " + hostName + ": " + error;
+				}
+				hostNames.add(hostName);
+			}
+			long heapAfter = usedHeapAfterGc();
+			long perHost = (heapAfter - heapBefore) / count;
+			String report = "Created " + count + " hosts (leanHosts=" + valve.getLeanHosts() + "): "
+					+ (perHost / 1024) + " KB heap per host, measured after garbage collection";
+			ValveLog.write(ValveLog.INFO, 0, "Host footprint: {}", report);
+			return report;
+		} catch (IOException e) {
+			return "Could not create the hosts: " + e;
+		} finally {
+			for (String hostName : hostNames) {
+				valve.discardHost(engine, hostName);
+			}
+		}
+	}
+
+	// An estimate: System.gc is only a request, so it is asked a few times.
+	private static long usedHeapAfterGc() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	// creates the hosts, and waits until all of them are done
+	private String provision(List<Entry> entries) {
+		long start = System.nanoTime();
+		ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger threadNr = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "mod_cfml-provision-" + threadNr.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		List<Future<String>> results = new ArrayList<Future<String>>(entries.size());
+		for (final Entry entry : entries) {
+			results.add(executor.submit(new Callable<String>() {
+				@Override
+				public String call() {
+					long hostStart = System.nanoTime();
+					String error;
+					try {
+						error = valve.provisionHost(engine, entry.hostName, entry.aliases, entry.docRoot, valve.nextLogNr());
+					} catch (Exception e) {
+						error = e.toString();
+					}
+					long millis = (System.nanoTime() - hostStart) / 1000000;
+					return (error == null ? "OK" : "FAILED") + "\t" + entry.hostName + "\t" + millis + " ms"
+							+ (error == null ? "" : "\t" + error);
+				}
+			}));
+		}
+		executor.shutdown();
+
+		StringBuilder lines = new StringBuilder();
+		int failed = 0;
+		for (int i = 0; i < results.size(); i++) {
+			String line;
+			try {
+				line = results.get(i).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				line = "FAILED\t" + entries.get(i).hostName + "\tinterrupted";
+			} catch (ExecutionException e) {
+				line = "FAILED\t" + entries.get(i).hostName + "\t" + e.getCause();
+			}
+			if (line.startsWith("FAILED")) {
+				failed++;
+			}
+			lines.append(line).append('\n');
+		}
+		long millis = (System.nanoTime() - start) / 1000000;
+		return "Created " + (entries.size() - failed) + " of " + entries.size() + " hosts in " + millis + " ms, "
+				+ failed + " failed\n" + lines;
+	}
+
+	static List<Entry> readManifest(File file) throws IOException {
+		List<Entry> entries = new ArrayList<Entry>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+		try {
+			String line;
+			int lineNr = 0;
+			while ((line = in.readLine()) != null) {
+				lineNr++;
+				if (line.trim().isEmpty() || line.trim().startsWith("#")) {
+					continue;
+				}
+				String[] fields = line.split("\t");
+				if (fields.length < 2 || fields[0].trim().isEmpty() || fields[1].trim().isEmpty()) {
+					ValveLog.warn(0, "Skipping line {} of host manifest {}: expected host name and DocRoot, separated by a tab", lineNr, file);
+					continue;
+				}
+				Entry entry = new Entry(HostNames.escapeUnsafeChars(fields[0].trim().toLowerCase()), fields[1].trim());
+				if (fields.length > 2) {
+					for (String alias : fields[2].split(",")) {
+						if (!alias.trim().isEmpty()) {
+							entry.aliases.add(alias.trim().toLowerCase());
+						}
+					}
+				}
+				entries.add(entry);
+			}
+		} finally {
+			in.close();
+		}
+		return entries;
+	}
+
+	static final class Entry {
+		final String hostName;
+		final String docRoot;
+		final List<String> aliases = new ArrayList<String>();
+
+		Entry(String hostName, String docRoot) {
+			this.hostName = hostName;
+			this.docRoot = docRoot;
+		}
+	}
+}
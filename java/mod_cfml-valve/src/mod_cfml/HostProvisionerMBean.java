@@ -0,0 +1,21 @@
+package mod_cfml;
+
+/**
+ * Licensed Under the LGPL 3.0
+ * http://www.opensource.org/licenses/lgpl-3.0.html
+ *
+ * Home Page:
+ * http://www.modcfml.org/
+ */
+
+// JMX operations to create hosts before the first request for them comes in.
+public interface HostProvisionerMBean {
+
+	// Creates all hosts from the given manifest file, and waits until they are done. Returns a report with the
+	// time taken and the outcome of every host. Relative paths are relative to the Tomcat base directory.
+	String provisionFromManifest(String manifestFile);
+
+	// Creates the given amount of temporary hosts for the given DocRoot, and reports how much heap each of them
+	// takes, measured after garbage collection. The hosts are removed again afterwards.
+	String measureHostFootprint(String docRoot, int count);
+}
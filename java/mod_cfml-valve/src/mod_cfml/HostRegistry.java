@@ -0,0 +1,203 @@
+package mod_cfml;
+
+/**
+ * Licensed Under the LGPL 3.0
+ * http://www.opensource.org/licenses/lgpl-3.0.html
+ *
+ * Home Page:
+ * http://www.modcfml.org/
+ */
+
+// java
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The hosts created by mod_cfml, with their aliases, DocRoot and usage statistics.
+// Can be saved to a file, so the hosts can be created again after a restart.
+final class HostRegistry {
+
+	private static final String ENCODING = "UTF-8";
+
+	private final ConcurrentHashMap<String, Record> records = new ConcurrentHashMap<String, Record>();
+	// set when hosts or aliases were added or removed since the last save
+	private volatile boolean changed = false;
+	private volatile long lastSaveTime = 0;
+	// the hits of all hosts together at the last save, to see whether the statistics changed since
+	private volatile long savedHits = -1;
+
+	// returns the record for the given host, creating it if necessary
+	Record register(String hostName, String docRoot) {
+		Record record = records.get(hostName);
+		if (record == null) {
+			Record newRecord = new Record(hostName, docRoot);
+			record = records.putIfAbsent(hostName, newRecord);
+			if (record == null) {
+				record = newRecord;
+			}
+		}
+		record.docRoot = docRoot;
+		changed = true;
+		return record;
+	}
+
+	Record get(String hostName) {
+		return records.get(hostName);
+	}
+
+	void addAlias(String hostName, String alias) {
+		Record record = records.get(hostName);
+		if (record != null && record.aliases.add(alias)) {
+			changed = true;
+		}
+	}
+
+	void remove(String hostName) {
+		if (records.remove(hostName) != null) {
+			changed = true;
+		}
+	}
+
+	List<Record> getRecords() {
+		return new ArrayList<Record>(records.values());
+	}
+
+	// all records, the most used hosts first
+	List<Record> getRecordsByHits() {
+		List<Record> list = new ArrayList<Record>(records.values());
+		Collections.sort(list, new Comparator<Record>() {
+			@Override
+			public int compare(Record a, Record b) {
+				long hitsA = a.hits.get();
+				long hitsB = b.hits.get();
+				return hitsA > hitsB ? -1 : (hitsA < hitsB ? 1 : 0);
+			}
+		});
+		return list;
+	}
+
+	// Saves the registry if hosts were added or removed, or if only the statistics changed and
+	// the last save was longer than minStatsInterval milliseconds ago.
+	void saveIfChanged(File file, long minStatsInterval) throws IOException {
+		if (changed || (System.currentTimeMillis() - lastSaveTime > minStatsInterval && totalHits() != savedHits)) {
+			save(file);
+		}
+	}
+
+	private long totalHits() {
+		long total = 0;
+		for (Record record : records.values()) {
+			total += record.hits.get();
+		}
+		return total;
+	}
+
+	// One line per host: name, DocRoot, hits, last hit time, and the comma-separated aliases, separated by tabs.
+	// The file is written next to the old one first, so a crash can never leave a half-written registry behind.
+	synchronized void save(File file) throws IOException {
+		changed = false;
+		lastSaveTime = System.currentTimeMillis();
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.isDirectory()) {
+			parent.mkdirs();
+		}
+		File tmpFile = new File(file.getPath() + ".tmp");
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), ENCODING));
+		long total = 0;
+		try {
+			for (Record record : records.values()) {
+				long hits = record.hits.get();
+				total += hits;
+				StringBuilder line = new StringBuilder();
+				line.append(record.name).append('\t').append(record.docRoot)
+						.append('\t').append(hits)
+						.append('\t').append(record.lastHit);
+				line.append('\t');
+				boolean first = true;
+				for (String alias : record.aliases) {
+					if (!first) {
+						line.append(',');
+					}
+					line.append(alias);
+					first = false;
+				}
+				out.println(line);
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmpFile.renameTo(file)) {
+			// renameTo does not overwrite existing files on Windows
+			file.delete();
+			if (!tmpFile.renameTo(file)) {
+				throw new IOException("Could not rename " + tmpFile + " to " + file);
+			}
+		}
+		savedHits = total;
+	}
+
+	// loads the hosts saved earlier. Returns the amount of hosts read.
+	int load(File file) throws IOException {
+		if (!file.isFile()) {
+			return 0;
+		}
+		int count = 0;
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split("\t", -1);
+				if (fields.length < 5 || fields[0].isEmpty() || fields[1].isEmpty()) {
+					continue;
+				}
+				Record record = new Record(fields[0], fields[1]);
+				try {
+					record.hits.set(Long.parseLong(fields[2]));
+					record.lastHit = Long.parseLong(fields[3]);
+				} catch (NumberFormatException e) {
+					// just the statistics, not important
+				}
+				for (String alias : fields[4].split(",")) {
+					if (!alias.isEmpty()) {
+						record.aliases.add(alias);
+					}
+				}
+				records.put(record.name, record);
+				count++;
+			}
+		} finally {
+			in.close();
+		}
+		return count;
+	}
+
+	static final class Record {
+		final String name;
+		volatile String docRoot;
+		final Set<String> aliases = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		final AtomicLong hits = new AtomicLong();
+		volatile long lastHit = 0;
+
+		Record(String name, String docRoot) {
+			this.name = name;
+			this.docRoot = docRoot;
+		}
+
+		void hit() {
+			hits.incrementAndGet();
+			lastHit = System.currentTimeMillis();
+		}
+	}
+}
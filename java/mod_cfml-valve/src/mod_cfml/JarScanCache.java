@@ -0,0 +1,164 @@
+package mod_cfml;
+
+/**
+ * Licensed Under the LGPL 3.0
+ * http://www.opensource.org/licenses/lgpl-3.0.html
+ *
+ * Home Page:
+ * http://www.modcfml.org/
+ */
+
+// java
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+// Remembers which jar files contain tag library descriptors (TLDs), by path, size and modification time.
+// Every new context has Tomcat open all its jars to look for TLDs, while most sites use the same CFML engine jars,
+// which have none. The names of the jars which are known to have no TLDs can be given to Tomcat as jars to skip.
+final class JarScanCache {
+
+	private static final String ENCODING = "UTF-8";
+
+	// jar path => what we found in it
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private volatile boolean changed = false;
+
+	// Checks the given jar, unless it was checked before and did not change since.
+	// Returns whether it contains TLDs; false if it is not a valid jar.
+	boolean record(File jar) {
+		String path = jar.getAbsolutePath();
+		long size = jar.length();
+		long modified = jar.lastModified();
+		Entry entry = entries.get(path);
+		if (entry != null && entry.size == size && entry.modified == modified) {
+			return entry.hasTld;
+		}
+		try {
+			entry = new Entry(size, modified, containsTld(jar));
+			entries.put(path, entry);
+			changed = true;
+			return entry.hasTld;
+		} catch (IOException e) {
+			// not a valid jar; Tomcat will complain about it itself
+			return false;
+		}
+	}
+
+	// checks all jars in the given directory, eg. WEB-INF/lib
+	void recordDir(File dir) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			if (file.isFile() && file.getName().toLowerCase().endsWith(".jar")) {
+				record(file);
+			}
+		}
+	}
+
+	// The file names of the jars without TLDs. Tomcat skips jars by file name only, so a name is left out
+	// as soon as one jar with that name contains a TLD, or was changed since it was checked.
+	Set<String> getJarNamesWithoutTld() {
+		Set<String> withoutTld = new TreeSet<String>();
+		Set<String> excluded = new HashSet<String>();
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+			File jar = new File(e.getKey());
+			Entry entry = e.getValue();
+			if (entry.hasTld || jar.length() != entry.size || jar.lastModified() != entry.modified) {
+				excluded.add(jar.getName());
+			} else {
+				withoutTld.add(jar.getName());
+			}
+		}
+		withoutTld.removeAll(excluded);
+		return withoutTld;
+	}
+
+	private static boolean containsTld(File jar) throws IOException {
+		JarFile jarFile = new JarFile(jar);
+		try {
+			Enumeration<JarEntry> jarEntries = jarFile.entries();
+			while (jarEntries.hasMoreElements()) {
+				String name = jarEntries.nextElement().getName();
+				// Tomcat only looks for TLDs within META-INF
+				if (name.startsWith("META-INF/") && name.endsWith(".tld")) {
+					return true;
+				}
+			}
+			return false;
+		} finally {
+			jarFile.close();
+		}
+	}
+
+	// one line per jar: path, size, modification time and whether it contains TLDs, separated by tabs
+	void saveIfChanged(File file) throws IOException {
+		if (!changed) {
+			return;
+		}
+		changed = false;
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null && !parent.isDirectory()) {
+			parent.mkdirs();
+		}
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), ENCODING));
+		try {
+			for (Map.Entry<String, Entry> e : entries.entrySet()) {
+				Entry entry = e.getValue();
+				out.println(e.getKey() + "\t" + entry.size + "\t" + entry.modified + "\t" + entry.hasTld);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	void load(File file) throws IOException {
+		if (!file.isFile()) {
+			return;
+		}
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] fields = line.split("\t");
+				if (fields.length < 4) {
+					continue;
+				}
+				try {
+					entries.put(fields[0], new Entry(Long.parseLong(fields[1]), Long.parseLong(fields[2]), Boolean.parseBoolean(fields[3])));
+				} catch (NumberFormatException e) {
+					// skip the line; the jar will just be checked again
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static final class Entry {
+		final long size;
+		final long modified;
+		final boolean hasTld;
+
+		Entry(long size, long modified, boolean hasTld) {
+			this.size = size;
+			this.modified = modified;
+			this.hasTld = hasTld;
+		}
+	}
+}
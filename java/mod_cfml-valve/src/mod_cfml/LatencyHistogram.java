@@ -0,0 +1,92 @@
+package mod_cfml;
+
+/**
+ * Licensed Under the LGPL 3.0
+ * http://www.opensource.org/licenses/lgpl-3.0.html
+ *
+ * Home Page:
+ * http://www.modcfml.org/
+ */
+
+// java
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Counts durations in fixed millisecond buckets. Recording only does atomic increments, no locking.
+final class LatencyHistogram {
+
+	// upper bounds of the buckets, in milliseconds. The last bucket holds everything slower.
+	static final long[] BUCKET_LIMITS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000};
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_LIMITS.length + 1);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalNanos = new AtomicLong();
+	private final AtomicLong maxNanos = new AtomicLong();
+
+	void record(long nanos) {
+		long millis = nanos / 1000000L;
+		int bucket = 0;
+		while (bucket < BUCKET_LIMITS.length && millis >= BUCKET_LIMITS[bucket]) {
+			bucket++;
+		}
+		buckets.incrementAndGet(bucket);
+		count.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+		long max = maxNanos.get();
+		while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+			max = maxNanos.get();
+		}
+	}
+
+	long getCount() {
+		return count.get();
+	}
+
+	double getMeanMillis() {
+		long n = count.get();
+		return n == 0 ? 0 : totalNanos.get() / 1000000.0 / n;
+	}
+
+	double getMaxMillis() {
+		return maxNanos.get() / 1000000.0;
+	}
+
+	long[] getBuckets() {
+		long[] copy = new long[buckets.length()];
+		for (int i = 0; i < copy.length; i++) {
+			copy[i] = buckets.get(i);
+		}
+		return copy;
+	}
+
+	// the upper limit of the bucket which holds the given percentile (0-100), in milliseconds.
+	// Returns -1 if the percentile lies in the last, open-ended bucket.
+	long getPercentileMillis(double percentile) {
+		long[] counts = getBuckets();
+		long total = 0;
+		for (long c : counts) {
+			total += c;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long needed = (long) Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < BUCKET_LIMITS.length; i++) {
+			seen += counts[i];
+			if (seen >= needed) {
+				return BUCKET_LIMITS[i];
+			}
+		}
+		return -1;
+	}
+
+	void reset() {
+		for (int i = 0; i < buckets.length(); i++) {
+			buckets.set(i, 0);
+		}
+		count.set(0);
+		totalNanos.set(0);
+		maxNanos.set(0);
+	}
+}
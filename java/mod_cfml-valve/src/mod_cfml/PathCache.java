@@ -0,0 +1,68 @@
+package mod_cfml;
+
+/**
+ * Licensed Under the LGPL 3.0
+ * http://www.opensource.org/licenses/lgpl-3.0.html
+ *
+ * Home Page:
+ * http://www.modcfml.org/
+ */
+
+// java
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Remembers canonical paths and isDirectory() results for a while, so requests with the same DocRoot
+// do not hit the (possibly network) file system every time. Invalid paths are remembered as well.
+final class PathCache {
+
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	// returns the canonical file for the given path, and whether it was a directory at the time of checking.
+	// A cacheTime of 0 disables the cache.
+	Entry lookup(String path, long cacheTime, int maxSize) throws IOException {
+		long now = System.currentTimeMillis();
+		Entry entry = entries.get(path);
+		if (entry != null && entry.expires > now) {
+			return entry;
+		}
+		File canonicalFile = new File(path).getCanonicalFile();
+		entry = new Entry(canonicalFile, canonicalFile.isDirectory(), now + cacheTime);
+		if (cacheTime > 0 && maxSize > 0) {
+			if (entries.size() >= maxSize) {
+				removeExpired(now);
+				if (entries.size() >= maxSize) {
+					entries.clear();
+				}
+			}
+			entries.put(path, entry);
+		}
+		return entry;
+	}
+
+	// forget what we know about the given path, eg. after creating or deleting it
+	void remove(String path) {
+		entries.remove(path);
+	}
+
+	private void removeExpired(long now) {
+		for (java.util.Map.Entry<String, Entry> e : entries.entrySet()) {
+			if (e.getValue().expires <= now) {
+				entries.remove(e.getKey(), e.getValue());
+			}
+		}
+	}
+
+	static final class Entry {
+		final File canonicalFile;
+		final boolean directory;
+		final long expires;
+
+		Entry(File canonicalFile, boolean directory, long expires) {
+			this.canonicalFile = canonicalFile;
+			this.directory = directory;
+			this.expires = expires;
+		}
+	}
+}
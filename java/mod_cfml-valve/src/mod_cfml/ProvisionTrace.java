@@ -0,0 +1,63 @@
+package mod_cfml;
+
+/**
+ * Licensed Under the LGPL 3.0
+ * http://www.opensource.org/licenses/lgpl-3.0.html
+ *
+ * Home Page:
+ * http://www.modcfml.org/
+ */
+
+// java
+import java.util.Locale;
+
+// How long each phase of one host creation took. Only used by the thread which creates the host.
+final class ProvisionTrace {
+
+	// waiting for another request which is creating the same host
+	static final int COALESCE_WAIT = 0;
+	static final int THROTTLE = 1;
+	static final int LOCK_WAIT = 2;
+	static final int DIR_CLEANUP = 3;
+	static final int ROOT_XML = 4;
+	static final int ADD_CHILD = 5;
+	static final int CONTEXT_START = 6;
+	static final int TOTAL = 7;
+	static final int PHASES = 8;
+
+	// the metric names in the Server-Timing header, by phase
+	private static final String[] TIMING_NAMES = {"coalesce", "throttle", "lock", "cleanup", "rootxml", "addchild", "ready", "total"};
+
+	private final long startNanos = System.nanoTime();
+	private final long[] nanos = new long[PHASES];
+
+	void add(int phase, long phaseNanos) {
+		nanos[phase] += phaseNanos;
+	}
+
+	long get(int phase) {
+		return nanos[phase];
+	}
+
+	// sets the TOTAL phase to the time since this trace was created
+	void finish() {
+		nanos[TOTAL] = System.nanoTime() - startNanos;
+	}
+
+	// The phases which took place as the value of a Server-Timing header, in milliseconds, eg. "throttle;dur=0.1,
+	// lock;dur=0.0, ...". The total is always included.
+	String toServerTiming() {
+		StringBuilder timing = new StringBuilder();
+		for (int i = 0; i < PHASES; i++) {
+			if (nanos[i] == 0 && i != TOTAL) {
+				continue;
+			}
+			if (timing.length() > 0) {
+				timing.append(", ");
+			}
+			// the header needs a dot as decimal separator, whatever the default locale is
+			timing.append(TIMING_NAMES[i]).append(";dur=").append(String.format(Locale.ENGLISH, "%.1f", nanos[i] / 1000000.0));
+		}
+		return timing.toString();
+	}
+}
@@ -0,0 +1,91 @@
+package mod_cfml;
+
+/**
+ * Licensed Under the LGPL 3.0
+ * http://www.opensource.org/licenses/lgpl-3.0.html
+ *
+ * Home Page:
+ * http://www.modcfml.org/
+ */
+
+// java
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+// A host registry in a directory shared by several Tomcat servers, eg. on a network drive. Every server adds the hosts
+// it creates, and reads the hosts the other servers added, so it can create them as well before the first request.
+// The file is only read and written while holding a file lock, so servers never overwrite each other's changes.
+final class SharedHostRegistry {
+
+	static final String HOSTS_FILE_NAME = "mod_cfml-hosts.txt";
+	static final String LOCK_FILE_NAME = "mod_cfml-hosts.lock";
+
+	// File locks are held by the whole JVM, and locking the same file twice within one JVM throws an exception.
+	// So valves in the same JVM first have to get this lock, one per shared directory.
+	private static final ConcurrentHashMap<String, Object> jvmLocks = new ConcurrentHashMap<String, Object>();
+
+	private final File hostsFile;
+	private final File lockFile;
+	private final Object jvmLock;
+
+	SharedHostRegistry(File dir) throws IOException {
+		File canonicalDir = dir.getCanonicalFile();
+		if (!canonicalDir.isDirectory() && !canonicalDir.mkdirs()) {
+			throw new IOException("Could not create directory " + canonicalDir);
+		}
+		hostsFile = new File(canonicalDir, HOSTS_FILE_NAME);
+		lockFile = new File(canonicalDir, LOCK_FILE_NAME);
+		Object newLock = new Object();
+		Object lock = jvmLocks.putIfAbsent(canonicalDir.getPath(), newLock);
+		jvmLock = lock == null ? newLock : lock;
+	}
+
+	// Adds the given hosts and their aliases to the shared registry, if they are not in there yet, and returns
+	// all hosts from the shared registry, including the ones added by other servers.
+	List<HostRegistry.Record> sync(Collection<HostRegistry.Record> localRecords) throws IOException {
+		synchronized (jvmLock) {
+			RandomAccessFile lockAccess = new RandomAccessFile(lockFile, "rw");
+			try {
+				FileChannel channel = lockAccess.getChannel();
+				FileLock lock = channel.lock();
+				try {
+					HostRegistry shared = new HostRegistry();
+					shared.load(hostsFile);
+					boolean changed = false;
+					for (HostRegistry.Record local : localRecords) {
+						HostRegistry.Record record = shared.get(local.name);
+						if (record == null || !record.docRoot.equals(local.docRoot)) {
+							record = shared.register(local.name, local.docRoot);
+							changed = true;
+						}
+						for (String alias : local.aliases) {
+							if (!record.aliases.contains(alias)) {
+								shared.addAlias(local.name, alias);
+								changed = true;
+							}
+						}
+					}
+					if (changed) {
+						shared.save(hostsFile);
+					}
+					return new ArrayList<HostRegistry.Record>(shared.getRecords());
+				} finally {
+					lock.release();
+				}
+			} finally {
+				lockAccess.close();
+			}
+		}
+	}
+
+	File getHostsFile() {
+		return hostsFile;
+	}
+}
@@ -0,0 +1,50 @@
+package mod_cfml;
+
+/**
+ * Licensed Under the LGPL 3.0
+ * http://www.opensource.org/licenses/lgpl-3.0.html
+ *
+ * Home Page:
+ * http://www.modcfml.org/
+ */
+
+// java
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// A counter which is increased by many threads at the same time, like the amount of requests passing through the valve.
+// Each thread adds to one of several slots, which lie far enough apart not to share a CPU cache line, so the threads
+// do not slow each other down like they would with one AtomicLong. Reading the counter adds up all slots.
+final class StripedCounter {
+
+	// 16 longs = 128 bytes between two slots
+	private static final int SPACING = 16;
+
+	private final int stripeMask;
+	private final AtomicLongArray slots;
+
+	StripedCounter() {
+		// a power of two, about twice the amount of processors, at most 64
+		int stripes = Math.min(64, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1);
+		stripeMask = stripes - 1;
+		slots = new AtomicLongArray(stripes * SPACING);
+	}
+
+	void increment() {
+		int stripe = (int) Thread.currentThread().getId() & stripeMask;
+		slots.incrementAndGet(stripe * SPACING);
+	}
+
+	long get() {
+		long sum = 0;
+		for (int i = 0; i < slots.length(); i += SPACING) {
+			sum += slots.get(i);
+		}
+		return sum;
+	}
+
+	void reset() {
+		for (int i = 0; i < slots.length(); i += SPACING) {
+			slots.set(i, 0);
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package mod_cfml;
+
+/**
+ * Licensed Under the LGPL 3.0
+ * http://www.opensource.org/licenses/lgpl-3.0.html
+ *
+ * Home Page:
+ * http://www.modcfml.org/
+ */
+
+// Rate limiter for context creation: holds up to "burst" tokens, and gets one token back every
+// "refillInterval" milliseconds. Not thread-safe; callers synchronize on their own lock.
+final class TokenBucket {
+
+	private double tokens = -1; // a new bucket starts full
+	private long lastRefill = 0;
+
+	// Returns 0 if a token is available now, or the amount of milliseconds until there will be one.
+	// Does not take the token; call take() for that.
+	long waitTime(int burst, long refillInterval, long now) {
+		if (refillInterval <= 0) {
+			return 0;
+		}
+		if (burst < 1) {
+			burst = 1;
+		}
+		if (tokens < 0) {
+			tokens = burst;
+		} else if (now > lastRefill) {
+			tokens = Math.min(burst, tokens + (now - lastRefill) / (double) refillInterval);
+		}
+		lastRefill = Math.max(lastRefill, now);
+		if (tokens >= 1) {
+			return 0;
+		}
+		return (long) Math.ceil((1 - tokens) * refillInterval);
+	}
+
+	// takes a token, after waitTime() returned 0
+	void take() {
+		if (tokens >= 1) {
+			tokens -= 1;
+		}
+	}
+}
@@ -0,0 +1,256 @@
+package mod_cfml;
+
+/**
+ * Licensed Under the LGPL 3.0
+ * http://www.opensource.org/licenses/lgpl-3.0.html
+ *
+ * Home Page:
+ * http://www.modcfml.org/
+ */
+
+// java
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+// Logging for the valve, without slowing down the request threads: messages are only queued by the requests,
+// and formatted and written to java.util.logging (which Tomcat sends through JULI) by a background thread.
+// If the queue is full, messages are dropped and counted, instead of making requests wait.
+// The background thread runs while at least one valve is started; otherwise, messages are written right away.
+final class ValveLog {
+
+	static final int OFF = 0;
+	static final int ERROR = 1;
+	static final int WARN = 2;
+	static final int INFO = 3;
+	static final int DEBUG = 4;
+
+	private static final String[] LEVEL_NAMES = {"OFF", "ERROR", "WARN", "INFO", "DEBUG"};
+	private static final Level[] JUL_LEVELS = {Level.OFF, Level.SEVERE, Level.WARNING, Level.INFO, Level.FINE};
+
+	private static final int QUEUE_SIZE = 10000;
+	// how long stop() waits for the background thread to write the queued messages
+	private static final long STOP_TIMEOUT_MILLIS = 5000;
+	private static final ArrayBlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(QUEUE_SIZE);
+	private static final AtomicLong droppedSinceReport = new AtomicLong();
+	private static final AtomicLong dropped = new AtomicLong();
+	private static final Logger logger = Logger.getLogger("mod_cfml");
+
+	// All valves share this log, so it uses the most detailed level any valve asks for. Each valve only decides
+	// about its own level; a valve with a lower level does not silence the messages another valve wants.
+	private static final Map<Object, Integer> valveLevels = new ConcurrentHashMap<Object, Integer>();
+	private static volatile int level = ERROR;
+
+	// the background thread, and the amount of valves using it
+	private static final Object writerLock = new Object();
+	private static Thread writer = null;
+	private static int writerUsers = 0;
+	private static volatile boolean writerRunning = false;
+
+	private ValveLog() {
+	}
+
+	// Starts the background thread, if it is not running yet. Called when a valve starts; every call
+	// must be followed by a call to stop().
+	static void start() {
+		synchronized (writerLock) {
+			writerUsers++;
+			if (writer != null) {
+				return;
+			}
+			writerRunning = true;
+			writer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					writeQueuedMessages();
+				}
+			}, "mod_cfml-log");
+			writer.setDaemon(true);
+			writer.start();
+		}
+	}
+
+	// Called when a valve stops. When no valve is left, the queued messages are written, and the background
+	// thread ends, so it does not keep the class loader of the valve alive after an undeploy.
+	static void stop() {
+		Thread stopped;
+		synchronized (writerLock) {
+			if (writerUsers == 0 || --writerUsers > 0) {
+				return;
+			}
+			writerRunning = false;
+			stopped = writer;
+			writer = null;
+		}
+		stopped.interrupt();
+		try {
+			stopped.join(STOP_TIMEOUT_MILLIS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+	}
+
+	// sets the level the given valve wants
+	static void setLevel(Object valve, int valveLevel) {
+		valveLevels.put(valve, valveLevel);
+		updateLevel();
+	}
+
+	// forgets the level of a valve which stopped
+	static void removeLevel(Object valve) {
+		valveLevels.remove(valve);
+		updateLevel();
+	}
+
+	private static synchronized void updateLevel() {
+		int newLevel = ERROR;
+		if (!valveLevels.isEmpty()) {
+			newLevel = OFF;
+			for (int valveLevel : valveLevels.values()) {
+				newLevel = Math.max(newLevel, valveLevel);
+			}
+		}
+		level = newLevel;
+	}
+
+	static int getLevel() {
+		return level;
+	}
+
+	// returns the level for the given name (ERROR, WARN, INFO, DEBUG or OFF), or -1 if the name is unknown
+	static int parseLevel(String name) {
+		for (int i = 0; i < LEVEL_NAMES.length; i++) {
+			if (LEVEL_NAMES[i].equalsIgnoreCase(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	static boolean isEnabled(int messageLevel) {
+		return messageLevel <= level;
+	}
+
+	// the amount of messages which did not fit in the queue since startup
+	static long getDroppedCount() {
+		return dropped.get();
+	}
+
+	static void error(int logNr, String message, Object... args) {
+		log(ERROR, logNr, message, args);
+	}
+
+	static void warn(int logNr, String message, Object... args) {
+		log(WARN, logNr, message, args);
+	}
+
+	static void info(int logNr, String message, Object... args) {
+		log(INFO, logNr, message, args);
+	}
+
+	static void debug(int logNr, String message, Object... args) {
+		log(DEBUG, logNr, message, args);
+	}
+
+	// Queues the message if the current log level allows it. Each "{}" in the message is replaced by the next argument,
+	// but only when the message is written. logNr is the request number, or 0 if the message is not about a request.
+	static void log(int messageLevel, int logNr, String message, Object... args) {
+		if (messageLevel <= level) {
+			write(messageLevel, logNr, message, args);
+		}
+	}
+
+	// queues the message, whatever the current log level is
+	static void write(int messageLevel, int logNr, String message, Object... args) {
+		if (!queue.offer(new Entry(messageLevel, logNr, message, args))) {
+			droppedSinceReport.incrementAndGet();
+			dropped.incrementAndGet();
+		}
+		if (!writerRunning) {
+			// no background thread (anymore); the message must not stay in the queue
+			flush();
+		}
+	}
+
+	// writes all queued messages, on the calling thread
+	static void flush() {
+		Entry entry;
+		while ((entry = queue.poll()) != null) {
+			publish(entry);
+		}
+	}
+
+	private static void writeQueuedMessages() {
+		while (writerRunning) {
+			Entry entry;
+			try {
+				entry = queue.take();
+			} catch (InterruptedException e) {
+				// stop() wakes us up this way
+				continue;
+			}
+			publish(entry);
+		}
+		flush();
+	}
+
+	private static void publish(Entry entry) {
+		LogRecord record = entry.record;
+		record.setMessage(entry.format());
+		publish(record);
+		long droppedCount = droppedSinceReport.getAndSet(0);
+		if (droppedCount > 0) {
+			publish(new LogRecord(JUL_LEVELS[WARN], "[mod_cfml] " + droppedCount + " log messages were dropped, because the log queue was full"));
+		}
+	}
+
+	private static void publish(LogRecord record) {
+		try {
+			record.setLoggerName(logger.getName());
+			// otherwise, java.util.logging would name this class as the source of every message
+			record.setSourceClassName("mod_cfml.core");
+			record.setSourceMethodName(null);
+			logger.log(record);
+		} catch (RuntimeException e) {
+			// never let a broken log handler stop the log thread
+		}
+	}
+
+	private static final class Entry {
+		// created right away, so it gets the time (and thread) of the call, not of writing it
+		final LogRecord record;
+		final int logNr;
+		final String message;
+		final Object[] args;
+
+		Entry(int level, int logNr, String message, Object[] args) {
+			this.record = new LogRecord(JUL_LEVELS[level], message);
+			this.logNr = logNr;
+			this.message = message;
+			this.args = args;
+		}
+
+		String format() {
+			StringBuilder out = new StringBuilder(message.length() + 64);
+			out.append("[mod_cfml]");
+			if (logNr > 0) {
+				out.append('[').append(logNr).append(']');
+			}
+			out.append(' ');
+			int argNr = 0;
+			int start = 0;
+			int pos;
+			while ((pos = message.indexOf("{}", start)) != -1 && args != null && argNr < args.length) {
+				out.append(message, start, pos).append(args[argNr++]);
+				start = pos + 2;
+			}
+			out.append(message, start, message.length());
+			return out.toString();
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package mod_cfml;
+
+/**
+ * Licensed Under the LGPL 3.0
+ * http://www.opensource.org/licenses/lgpl-3.0.html
+ *
+ * Home Page:
+ * http://www.modcfml.org/
+ */
+
+// java
+import java.util.concurrent.atomic.AtomicLong;
+
+// Counters and host creation timings of the valve, registered as MBean "mod_cfml:type=ValveStats,host=[host name]".
+// Everything is recorded with atomic operations, so requests never wait for each other here.
+public final class ValveStats implements ValveStatsMBean {
+
+	private static final String[] PHASE_NAMES = {"coalesceWait", "throttle", "lockWait", "dirCleanup", "rootXmlWrite", "addChild", "contextStart", "total"};
+
+	// increased by every request which does not need the valve, so it must not become a point of contention
+	final StripedCounter requestsPassedThrough = new StripedCounter();
+	final AtomicLong hostsCreated = new AtomicLong();
+	final AtomicLong aliasesAdded = new AtomicLong();
+	final AtomicLong throttleRejections = new AtomicLong();
+	final AtomicLong loopDetections = new AtomicLong();
+	final AtomicLong authFailures = new AtomicLong();
+
+	private final LatencyHistogram[] phases = new LatencyHistogram[ProvisionTrace.PHASES];
+
+	ValveStats() {
+		for (int i = 0; i < phases.length; i++) {
+			phases[i] = new LatencyHistogram();
+		}
+	}
+
+	// adds a single phase, for requests which did not create a host themselves
+	void record(int phase, long nanos) {
+		phases[phase].record(nanos);
+	}
+
+	// adds the phases which took place to the histograms
+	void record(ProvisionTrace trace) {
+		for (int i = 0; i < phases.length; i++) {
+			long nanos = trace.get(i);
+			if (nanos > 0) {
+				phases[i].record(nanos);
+			}
+		}
+	}
+
+	@Override
+	public long getRequestsPassedThrough() {
+		return requestsPassedThrough.get();
+	}
+
+	@Override
+	public long getHostsCreated() {
+		return hostsCreated.get();
+	}
+
+	@Override
+	public long getAliasesAdded() {
+		return aliasesAdded.get();
+	}
+
+	@Override
+	public long getThrottleRejections() {
+		return throttleRejections.get();
+	}
+
+	@Override
+	public long getLoopDetections() {
+		return loopDetections.get();
+	}
+
+	@Override
+	public long getAuthFailures() {
+		return authFailures.get();
+	}
+
+	@Override
+	public long getDroppedLogMessages() {
+		return ValveLog.getDroppedCount();
+	}
+
+	@Override
+	public int getThrottleValue() {
+		return core.getThrottleValue();
+	}
+
+	@Override
+	public long getLastContextTime() {
+		return core.getLastContextTime();
+	}
+
+	@Override
+	public long[] getHistogramBucketLimits() {
+		return LatencyHistogram.BUCKET_LIMITS.clone();
+	}
+
+	@Override
+	public long[] getCoalesceWaitHistogram() {
+		return phases[ProvisionTrace.COALESCE_WAIT].getBuckets();
+	}
+
+	@Override
+	public long[] getThrottleHistogram() {
+		return phases[ProvisionTrace.THROTTLE].getBuckets();
+	}
+
+	@Override
+	public long[] getLockWaitHistogram() {
+		return phases[ProvisionTrace.LOCK_WAIT].getBuckets();
+	}
+
+	@Override
+	public long[] getDirCleanupHistogram() {
+		return phases[ProvisionTrace.DIR_CLEANUP].getBuckets();
+	}
+
+	@Override
+	public long[] getRootXmlWriteHistogram() {
+		return phases[ProvisionTrace.ROOT_XML].getBuckets();
+	}
+
+	@Override
+	public long[] getAddChildHistogram() {
+		return phases[ProvisionTrace.ADD_CHILD].getBuckets();
+	}
+
+	@Override
+	public long[] getContextStartHistogram() {
+		return phases[ProvisionTrace.CONTEXT_START].getBuckets();
+	}
+
+	@Override
+	public long[] getTotalHistogram() {
+		return phases[ProvisionTrace.TOTAL].getBuckets();
+	}
+
+	@Override
+	public String getPhaseSummary() {
+		StringBuilder summary = new StringBuilder();
+		for (int i = 0; i < phases.length; i++) {
+			LatencyHistogram phase = phases[i];
+			long p50 = phase.getPercentileMillis(50);
+			long p99 = phase.getPercentileMillis(99);
+			summary.append(PHASE_NAMES[i])
+					.append(": count=").append(phase.getCount())
+					.append(", mean=").append(String.format("%.1f", phase.getMeanMillis()))
+					.append(", p50<=").append(p50 == -1 ? "inf" : String.valueOf(p50))
+					.append(", p99<=").append(p99 == -1 ? "inf" : String.valueOf(p99))
+					.append(", max=").append(String.format("%.1f", phase.getMaxMillis()))
+					.append('\n');
+		}
+		return summary.toString();
+	}
+
+	@Override
+	public void resetStatistics() {
+		requestsPassedThrough.reset();
+		hostsCreated.set(0);
+		aliasesAdded.set(0);
+		throttleRejections.set(0);
+		loopDetections.set(0);
+		authFailures.set(0);
+		for (LatencyHistogram phase : phases) {
+			phase.reset();
+		}
+	}
+}
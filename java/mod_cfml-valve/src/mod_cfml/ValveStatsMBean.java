@@ -0,0 +1,58 @@
+package mod_cfml;
+
+/**
+ * Licensed Under the LGPL 3.0
+ * http://www.opensource.org/licenses/lgpl-3.0.html
+ *
+ * Home Page:
+ * http://www.modcfml.org/
+ */
+
+// JMX view on what the mod_cfml valve has been doing. Durations are in milliseconds.
+public interface ValveStatsMBean {
+
+	long getRequestsPassedThrough();
+
+	long getHostsCreated();
+
+	long getAliasesAdded();
+
+	long getThrottleRejections();
+
+	long getLoopDetections();
+
+	long getAuthFailures();
+
+	long getDroppedLogMessages();
+
+	// contexts counted against maxContexts
+	int getThrottleValue();
+
+	long getLastContextTime();
+
+	// upper limits of the histogram buckets; the last bucket of each histogram holds everything slower
+	long[] getHistogramBucketLimits();
+
+	// time spent by requests waiting for another request which was creating the same host
+	long[] getCoalesceWaitHistogram();
+
+	long[] getThrottleHistogram();
+
+	// time spent waiting for another request which was creating a host with the same name
+	long[] getLockWaitHistogram();
+
+	long[] getDirCleanupHistogram();
+
+	long[] getRootXmlWriteHistogram();
+
+	long[] getAddChildHistogram();
+
+	long[] getContextStartHistogram();
+
+	long[] getTotalHistogram();
+
+	// count, mean, 50th/99th percentile and maximum of every phase, readable for humans
+	String getPhaseSummary();
+
+	void resetStatistics();
+}
@@ -31,13 +31,37 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Serializable;
 import java.io.FileOutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
 //import java.io.ObjectOutputStream;
 //import java.io.FileInputStream;
 //import java.io.ObjectInputStream;
 //import java.lang.String;
-import java.util.Date;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// jmx
+import javax.management.ObjectName;
 
 // servlet
 import javax.servlet.ServletException;
@@ -48,11 +72,17 @@ import org.apache.catalina.Engine;
 import org.apache.catalina.core.StandardHost;
 import org.apache.catalina.Globals;
 import org.apache.catalina.Container;
+import org.apache.catalina.Valve;
 import org.apache.catalina.valves.ValveBase;
 import org.apache.catalina.connector.Request;
 import org.apache.catalina.connector.Response;
 import org.apache.catalina.startup.HostConfig;
+import org.apache.catalina.startup.TldConfig;
+import org.apache.catalina.Lifecycle;
+import org.apache.catalina.LifecycleEvent;
 import org.apache.catalina.LifecycleException;
+import org.apache.catalina.LifecycleListener;
+import org.apache.catalina.LifecycleState;
 
 public class core extends ValveBase implements Serializable {
 
@@ -62,20 +92,99 @@ public class core extends ValveBase implements Serializable {
 
 	// declare configurable param defaults
 	private boolean loggingEnabled = false;
+	private String logLevel = ""; // ERROR, or INFO if loggingEnabled
 	private int waitForContext = 3; // 3 seconds
+	private int docRootCacheTime = 10000; // 10 seconds
+	private int docRootCacheSize = 1000;
 	private int timeBetweenContexts = 2000; // 2 seconds
+	private int contextBurst = 1;
+	private int timeBetweenParentContexts = 0; // disabled
 	private int maxContexts = 200;
+	private int maxActiveContexts = 0; // no limit
+	private int contextIdleTimeout = 0; // seconds; 0 means hosts are never removed for being idle
 	private boolean scanClassPaths = false;
 	private String sharedKey = "";
 	private int responseCode = 307;
+	private String hostRegistryFile = "";
+	private int warmupThreads = 2;
+	private boolean asyncDirCleanup = false;
+	private boolean preserveWorkDir = false;
+	private String manifestFile = "";
+	private String sharedRegistryDir = "";
+	private boolean directDeploy = false;
+	private boolean cacheJarScans = false;
+	private boolean serverTiming = false;
+	private boolean consolidateDocRoots = false;
+	private boolean leanHosts = false;
 	private static String redirectKey = "__";
 
+	private static final String JAR_SCAN_CACHE_FILE = "work/mod_cfml-jarscan.txt";
+
+	// the settings used while handling requests; see Config
+	private volatile Config config = new Config(this);
+
 	private static long lastContextTime = 0;
 	private static int throttleValue = 0;
+	// lockObject only guards the throttle counters; it is never held while a context is being created
 	private static final Object lockObject = new Object();
+	// context creation rate limits, guarded by lockObject: one for all contexts, and one per DocRoot parent directory
+	private static final TokenBucket contextBucket = new TokenBucket();
+	private static final Map<String, TokenBucket> parentContextBuckets = new LinkedHashMap<String, TokenBucket>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, TokenBucket> eldest) {
+			return size() > 1000;
+		}
+	};
+	// context creation is locked per host name, so unrelated hosts can be created in parallel
+	private static final int HOST_LOCK_STRIPES = 64;
+	private static final Object[] hostLocks = new Object[HOST_LOCK_STRIPES];
+	static {
+		for (int i = 0; i < HOST_LOCK_STRIPES; i++) {
+			hostLocks[i] = new Object();
+		}
+	}
+
+	// hosts which are being created right now, by host name. Requests for these hosts wait for the creating request.
+	private static final ConcurrentHashMap<String, PendingHost> pendingHosts = new ConcurrentHashMap<String, PendingHost>();
+
+	// normalized host names, by incoming Host header
+	private static final HostNames hostNameCache = new HostNames(1000);
+
+	// canonical paths and isDirectory() results of DocRoots and the conf/work directories
+	private static final PathCache pathCache = new PathCache();
+
+	// counters and timings, available through JMX
+	private final ValveStats stats = new ValveStats();
+	private ObjectName statsName = null;
+	private ObjectName provisionerName = null;
+
+	// the hosts we created, with their usage statistics
+	private final HostRegistry hostRegistry = new HostRegistry();
+
+	// all hosts and aliases of the engine, for lookups without locking
+	private final HostIndex hostIndex = new HostIndex();
+
+	// the host we created for each canonical DocRoot, for consolidateDocRoots
+	private final ConcurrentHashMap<String, String> docRootHosts = new ConcurrentHashMap<String, String>();
+
+	// the contexts deployed without HostConfig (directDeploy)
+	private final DirectDeployer directDeployer = new DirectDeployer(getBaseFile("conf"));
+
+	// which jars contain TLDs (cacheJarScans), and the DocRoots whose WEB-INF/lib still has to be checked
+	private final JarScanCache jarScanCache = new JarScanCache();
+	private final ConcurrentLinkedQueue<String> jarScanDocRoots = new ConcurrentLinkedQueue<String>();
+	// the jar names we told Tomcat to skip while looking for TLDs
+	private volatile Set<String> skippedTldJars = Collections.emptySet();
+
+	// the hosts of all servers sharing the sharedRegistryDir; null if not used
+	private SharedHostRegistry sharedRegistry = null;
+	private ExecutorService sharedRegistryExecutor = null;
+	private final AtomicBoolean sharedRegistrySyncRunning = new AtomicBoolean();
+	// the shared hosts (with DocRoot and aliases) we already created or tried to create
+	private final Set<String> sharedHostsSeen = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
 	// for logging: give each request it's own number
-	private int requestNr = 0;
+	private final AtomicInteger requestNr = new AtomicInteger();
 
 	// methods for configurable params
 	public boolean getLoggingEnabled() {
@@ -84,6 +193,25 @@ public class core extends ValveBase implements Serializable {
 
 	public void setLoggingEnabled(boolean loggingEnabled) {
 		this.loggingEnabled = loggingEnabled;
+		applyLogLevel();
+	}
+
+	public String getLogLevel() {
+		return (logLevel);
+	}
+
+	public void setLogLevel(String logLevel) {
+		this.logLevel = logLevel;
+		applyLogLevel();
+	}
+
+	// an explicit logLevel wins; otherwise loggingEnabled decides between INFO and ERROR
+	private void applyLogLevel() {
+		int level = ValveLog.parseLevel(logLevel);
+		if (level == -1) {
+			level = loggingEnabled ? ValveLog.INFO : ValveLog.ERROR;
+		}
+		ValveLog.setLevel(this, level);
 	}
 
 	public int getWaitForContext() {
@@ -92,6 +220,25 @@ public class core extends ValveBase implements Serializable {
 
 	public void setWaitForContext(int waitForContext) {
 		this.waitForContext = waitForContext;
+		publishConfig();
+	}
+
+	public int getDocRootCacheTime() {
+		return (docRootCacheTime);
+	}
+
+	public void setDocRootCacheTime(int docRootCacheTime) {
+		this.docRootCacheTime = docRootCacheTime;
+		publishConfig();
+	}
+
+	public int getDocRootCacheSize() {
+		return (docRootCacheSize);
+	}
+
+	public void setDocRootCacheSize(int docRootCacheSize) {
+		this.docRootCacheSize = docRootCacheSize;
+		publishConfig();
 	}
 
 	public int getTimeBetweenContexts() {
@@ -100,6 +247,25 @@ public class core extends ValveBase implements Serializable {
 
 	public void setTimeBetweenContexts(int timeBetweenContexts) {
 		this.timeBetweenContexts = timeBetweenContexts;
+		publishConfig();
+	}
+
+	public int getContextBurst() {
+		return (contextBurst);
+	}
+
+	public void setContextBurst(int contextBurst) {
+		this.contextBurst = contextBurst;
+		publishConfig();
+	}
+
+	public int getTimeBetweenParentContexts() {
+		return (timeBetweenParentContexts);
+	}
+
+	public void setTimeBetweenParentContexts(int timeBetweenParentContexts) {
+		this.timeBetweenParentContexts = timeBetweenParentContexts;
+		publishConfig();
 	}
 
 	public int getMaxContexts() {
@@ -108,6 +274,23 @@ public class core extends ValveBase implements Serializable {
 
 	public void setMaxContexts(int maxContexts) {
 		this.maxContexts = maxContexts;
+		publishConfig();
+	}
+
+	public int getMaxActiveContexts() {
+		return (maxActiveContexts);
+	}
+
+	public void setMaxActiveContexts(int maxActiveContexts) {
+		this.maxActiveContexts = maxActiveContexts;
+	}
+
+	public int getContextIdleTimeout() {
+		return (contextIdleTimeout);
+	}
+
+	public void setContextIdleTimeout(int contextIdleTimeout) {
+		this.contextIdleTimeout = contextIdleTimeout;
 	}
 
 	public boolean getScanClassPaths() {
@@ -124,6 +307,7 @@ public class core extends ValveBase implements Serializable {
 
 	public void setSharedKey(String sharedKey) {
 		this.sharedKey = sharedKey;
+		publishConfig();
 	}
         
 	public int getResponseCode() {
@@ -132,6 +316,97 @@ public class core extends ValveBase implements Serializable {
 
 	public void setResponseCode(int responseCode) {
 		this.responseCode = responseCode;
+		publishConfig();
+	}
+
+	public String getHostRegistryFile() {
+		return (hostRegistryFile);
+	}
+
+	public void setHostRegistryFile(String hostRegistryFile) {
+		this.hostRegistryFile = hostRegistryFile;
+	}
+
+	public int getWarmupThreads() {
+		return (warmupThreads);
+	}
+
+	public void setWarmupThreads(int warmupThreads) {
+		this.warmupThreads = warmupThreads;
+	}
+
+	public boolean getAsyncDirCleanup() {
+		return (asyncDirCleanup);
+	}
+
+	public void setAsyncDirCleanup(boolean asyncDirCleanup) {
+		this.asyncDirCleanup = asyncDirCleanup;
+	}
+
+	public boolean getPreserveWorkDir() {
+		return (preserveWorkDir);
+	}
+
+	public void setPreserveWorkDir(boolean preserveWorkDir) {
+		this.preserveWorkDir = preserveWorkDir;
+	}
+
+	public String getManifestFile() {
+		return (manifestFile);
+	}
+
+	public void setManifestFile(String manifestFile) {
+		this.manifestFile = manifestFile;
+	}
+
+	public String getSharedRegistryDir() {
+		return (sharedRegistryDir);
+	}
+
+	public void setSharedRegistryDir(String sharedRegistryDir) {
+		this.sharedRegistryDir = sharedRegistryDir;
+	}
+
+	public boolean getDirectDeploy() {
+		return (directDeploy);
+	}
+
+	public void setDirectDeploy(boolean directDeploy) {
+		this.directDeploy = directDeploy;
+	}
+
+	public boolean getCacheJarScans() {
+		return (cacheJarScans);
+	}
+
+	public void setCacheJarScans(boolean cacheJarScans) {
+		this.cacheJarScans = cacheJarScans;
+	}
+
+	public boolean getServerTiming() {
+		return (serverTiming);
+	}
+
+	public void setServerTiming(boolean serverTiming) {
+		this.serverTiming = serverTiming;
+		publishConfig();
+	}
+
+	public boolean getConsolidateDocRoots() {
+		return (consolidateDocRoots);
+	}
+
+	public void setConsolidateDocRoots(boolean consolidateDocRoots) {
+		this.consolidateDocRoots = consolidateDocRoots;
+		publishConfig();
+	}
+
+	public boolean getLeanHosts() {
+		return (leanHosts);
+	}
+
+	public void setLeanHosts(boolean leanHosts) {
+		this.leanHosts = leanHosts;
 	}
 
 	public String getRedirectKey() {
@@ -140,17 +415,281 @@ public class core extends ValveBase implements Serializable {
 
 	public void setRedirectKey(String redirectKey) {
 		this.redirectKey = redirectKey;
+		publishConfig();
 	}
 
-	public boolean initInternalCalled = false;
+	// validates the settings, and makes them available to new requests all at once
+	private void publishConfig() {
+		config = new Config(this);
+	}
+
+	public volatile boolean initInternalCalled = false;
 
 	protected void initInternal() throws LifecycleException {
 		super.initInternal();
 		initInternalCalled = true;
 
-		System.out.println("[mod_cfml] INFO: Starting mod_cfml version: " + versionNumber);
+		ValveLog.write(ValveLog.INFO, 0, "Starting mod_cfml version: {}", versionNumber);
+
+		publishConfig();
+		if (config.invalidResponseCode) {
+			// only going to allow 301 to 308 for our purposes
+			ValveLog.warn(0, "Invalid response code {} provided. Defaulting to 307.", responseCode);
+		}
+
+		// old conf/work directories which were not fully deleted before the last shutdown
+		String catalinaBase = System.getProperty(Globals.CATALINA_BASE_PROP);
+		int tombstones = DirCleaner.removeTombstones(new File(catalinaBase, "conf/Catalina"))
+				+ DirCleaner.removeTombstones(new File(catalinaBase, "work/Catalina"));
+		if (tombstones > 0) {
+			ValveLog.info(0, "Deleting {} old config/work directories in the background", tombstones);
+		}
+
+		if (cacheJarScans) {
+			initJarScanCache();
+		}
+	}
+
+	// Tells Tomcat which jars it does not need to open when looking for TLDs, based on what we found out earlier.
+	// This has to happen before any context starts, because Tomcat reads this list while starting contexts.
+	// Jars seen for the first time are checked now, or in the background, and are skipped from the next startup on.
+	// Tomcat skips jars by file name, for all contexts, so a name is only skipped if all jars we know with that name
+	// have no TLDs. That is why the jars of all known sites and web applications are checked first.
+	private void initJarScanCache() {
+		File cacheFile = getBaseFile(JAR_SCAN_CACHE_FILE);
+		try {
+			jarScanCache.load(cacheFile);
+		} catch (IOException e) {
+			ValveLog.error(0, "Could not read jar scan cache {}: {}", cacheFile, e);
+		}
+		// the sites from the host registry, which will be created again
+		File registryFile = getHostRegistryFileObject();
+		if (registryFile != null) {
+			HostRegistry knownHosts = new HostRegistry();
+			try {
+				knownHosts.load(registryFile);
+			} catch (IOException e) {
+				ValveLog.error(0, "Could not read host registry {}: {}", registryFile, e);
+			}
+			for (HostRegistry.Record record : knownHosts.getRecords()) {
+				jarScanCache.recordDir(new File(record.docRoot, "WEB-INF/lib"));
+			}
+		}
+		// the unpacked web applications of all hosts from server.xml
+		for (Container child : getContainer().getParent().findChildren()) {
+			if (child instanceof Host) {
+				File[] apps = getBaseFile(((Host) child).getAppBase()).listFiles();
+				if (apps != null) {
+					for (File app : apps) {
+						jarScanCache.recordDir(new File(app, "WEB-INF/lib"));
+					}
+				}
+			}
+		}
+		if (scanClassPaths) {
+			// the jars of Tomcat and the CFML engine, which every context sees
+			for (ClassLoader loader = getClass().getClassLoader(); loader != null; loader = loader.getParent()) {
+				if (loader instanceof URLClassLoader) {
+					for (URL url : ((URLClassLoader) loader).getURLs()) {
+						if ("file".equals(url.getProtocol()) && url.getPath().toLowerCase().endsWith(".jar")) {
+							try {
+								jarScanCache.record(new File(url.toURI()));
+							} catch (URISyntaxException e) {
+								// not a path we can check
+							}
+						}
+					}
+				}
+			}
+		}
+		Set<String> jarNames = jarScanCache.getJarNamesWithoutTld();
+		if (!jarNames.isEmpty()) {
+			// the same jars Tomcat skips by default, plus ours
+			StringBuilder noTldJars = new StringBuilder(System.getProperty("tomcat.util.scan.DefaultJarScanner.jarsToSkip", ""));
+			String tldJarsToSkip = System.getProperty("org.apache.catalina.startup.TldConfig.jarsToSkip", "");
+			if (!tldJarsToSkip.isEmpty()) {
+				noTldJars.append(',').append(tldJarsToSkip);
+			}
+			for (String jarName : jarNames) {
+				noTldJars.append(',').append(jarName);
+			}
+			TldConfig.setNoTldJars(noTldJars.toString());
+			skippedTldJars = jarNames;
+			ValveLog.info(0, "Skipping {} jars without TLDs when starting contexts", jarNames.size());
+		}
+		saveJarScanCache();
+	}
+
+	// A new site may have a jar with the same name as a skipped jar, which does contain TLDs. Tomcat would not see
+	// those TLDs, so then no jar is skipped anymore until the next startup, which leaves that name out.
+	// Tomcat's list can only be replaced safely while contexts are starting by switching it off, in one step.
+	private void checkSkippedTldJars(String docRoot, int logNr) {
+		if (skippedTldJars.isEmpty()) {
+			return;
+		}
+		File[] jars = new File(docRoot, "WEB-INF/lib").listFiles();
+		if (jars == null) {
+			return;
+		}
+		for (File jar : jars) {
+			if (skippedTldJars.contains(jar.getName()) && jarScanCache.record(jar)) {
+				ValveLog.warn(logNr, "{} contains TLDs, but jars named {} are skipped while looking for TLDs. No jars are skipped anymore until the next restart.",
+						jar, jar.getName());
+				skippedTldJars = Collections.<String>emptySet();
+				TldConfig.setNoTldJars(null);
+				return;
+			}
+		}
+	}
+
+	private void saveJarScanCache() {
+		File cacheFile = getBaseFile(JAR_SCAN_CACHE_FILE);
+		try {
+			jarScanCache.saveIfChanged(cacheFile);
+		} catch (IOException e) {
+			ValveLog.error(0, "Could not save jar scan cache {}: {}", cacheFile, e);
+		}
+	}
+
+	@Override
+	protected synchronized void startInternal() throws LifecycleException {
+		super.startInternal();
+		// a restarted valve asks for its level again
+		applyLogLevel();
+		ValveLog.start();
+
+		try {
+			statsName = new ObjectName("mod_cfml:type=ValveStats,host=" + ObjectName.quote(getContainer().getName()));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(stats, statsName);
+		} catch (Exception e) {
+			ValveLog.error(0, "Could not register the statistics MBean: {}", e);
+			statsName = null;
+		}
+
+		final Engine engine = (Engine) getContainer().getParent();
+		hostIndex.watch(engine);
+		final HostProvisioner provisioner = new HostProvisioner(this, engine, warmupThreads);
+		try {
+			provisionerName = new ObjectName("mod_cfml:type=HostProvisioner,host=" + ObjectName.quote(getContainer().getName()));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(provisioner, provisionerName);
+		} catch (Exception e) {
+			ValveLog.error(0, "Could not register the host provisioning MBean: {}", e);
+			provisionerName = null;
+		}
+
+		if (sharedRegistryDir != null && !sharedRegistryDir.isEmpty()) {
+			try {
+				sharedRegistry = new SharedHostRegistry(getBaseFile(sharedRegistryDir));
+				sharedRegistryExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable runnable) {
+						Thread thread = new Thread(runnable, "mod_cfml-shared-registry");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+				ValveLog.info(0, "Using shared host registry {}", sharedRegistry.getHostsFile());
+			} catch (IOException e) {
+				ValveLog.error(0, "Could not use shared registry directory {}: {}", sharedRegistryDir, e);
+				sharedRegistry = null;
+			}
+		}
+
+		boolean registryLoaded = false;
+		File registryFile = getHostRegistryFileObject();
+		if (registryFile != null) {
+			try {
+				int count = hostRegistry.load(registryFile);
+				ValveLog.info(0, "Loaded {} hosts from host registry {}", count, registryFile);
+				registryLoaded = true;
+			} catch (IOException e) {
+				ValveLog.error(0, "Could not read host registry {}: {}", registryFile, e);
+			}
+		}
+		final boolean warmup = registryLoaded;
+		final String manifest = manifestFile;
+		if (!warmup && (manifest == null || manifest.isEmpty())) {
+			return;
+		}
 
-		
+		// re-create the hosts from the registry and the manifest as soon as Tomcat has fully started
+		if (engine.getState() == LifecycleState.STARTED) {
+			startProvisioning(engine, provisioner, warmup, manifest);
+		} else {
+			engine.addLifecycleListener(new LifecycleListener() {
+				@Override
+				public void lifecycleEvent(LifecycleEvent event) {
+					if (Lifecycle.AFTER_START_EVENT.equals(event.getType())) {
+						engine.removeLifecycleListener(this);
+						startProvisioning(engine, provisioner, warmup, manifest);
+					}
+				}
+			});
+		}
+	}
+
+	private void startProvisioning(Engine engine, final HostProvisioner provisioner, boolean warmup, final String manifest) {
+		if (warmup) {
+			startWarmup(engine);
+		}
+		if (manifest != null && !manifest.isEmpty()) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					provisioner.provisionFromManifest(manifest);
+				}
+			}, "mod_cfml-manifest");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	@Override
+	protected synchronized void stopInternal() throws LifecycleException {
+		if (statsName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(statsName);
+			} catch (Exception e) {
+				// already gone
+			}
+			statsName = null;
+		}
+		if (provisionerName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(provisionerName);
+			} catch (Exception e) {
+				// already gone
+			}
+			provisionerName = null;
+		}
+		if (sharedRegistryExecutor != null) {
+			sharedRegistryExecutor.shutdownNow();
+			sharedRegistryExecutor = null;
+		}
+		sharedRegistry = null;
+		hostIndex.unwatch();
+		saveHostRegistry(0);
+		super.stopInternal();
+		// writes what is still queued, including any errors from saving the registry just now
+		ValveLog.stop();
+		ValveLog.removeLevel(this);
+	}
+
+	@Override
+	public void backgroundProcess() {
+		super.backgroundProcess();
+		removeIdleHosts((Engine) getContainer().getParent());
+		// hit counts change all the time; writing them once a minute is enough
+		saveHostRegistry(60000);
+		syncSharedRegistry((Engine) getContainer().getParent());
+		directDeployer.checkResources();
+		if (cacheJarScans) {
+			String docRoot;
+			while ((docRoot = jarScanDocRoots.poll()) != null) {
+				jarScanCache.recordDir(new File(docRoot, "WEB-INF/lib"));
+			}
+			saveJarScanCache();
+		}
 	}
 
 	@Override
@@ -159,13 +698,12 @@ public class core extends ValveBase implements Serializable {
 		String tcHost;
 		String tcMainHost;
 		int logNr;
+		// no locks are taken until we know this request needs a new host
+		Config cfg = config;
 
-		synchronized (lockObject) {
-			logNr = ++requestNr;
-			if (loggingEnabled & initInternalCalled) {
-				initInternalCalled = false;
-				System.out.println("[mod_cfml] INFO: Counters have been reset (maxContexts, timeBetweenContexts)");
-			}
+		if (initInternalCalled) {
+			initInternalCalled = false;
+			ValveLog.info(0, "Counters have been reset (maxContexts, timeBetweenContexts)");
 		}
 
 		// Get the DocRoot value from the HTTP header
@@ -174,109 +712,97 @@ public class core extends ValveBase implements Serializable {
 		// verify the tcDocRoot value exists and isn't blank
 		if ((tcDocRoot == null) || tcDocRoot.isEmpty()) {
 			// bad DocRoot? Skip this Valve.
-			if (loggingEnabled) {
-				System.out.println("[mod_cfml] FATAL: X-Tomcat-DocRoot not given or empty.");
-			}
+			ValveLog.info(0, "X-Tomcat-DocRoot not given or empty.");
+			stats.requestsPassedThrough.increment();
 			getNext().invoke(request, response);
 			return;
 		}
 
+		logNr = requestNr.incrementAndGet();
+
 		// check if secret key is given in the valve config. if so, make sure the client sent it as well
 		// (request should come proxied from the frontend webserver)
-		if (sharedKey != null && !sharedKey.isEmpty()) {
+		if (cfg.sharedKey != null) {
 			String incomingKey = request.getHeader("X-ModCFML-SharedKey");
-			if (incomingKey == null || !incomingKey.equals(sharedKey)) {
+			if (incomingKey == null || !incomingKey.equals(cfg.sharedKey)) {
+				stats.authFailures.incrementAndGet();
+				addTimingHeaders(cfg, response, logNr, null);
 				handleError(503, "mod_cfml request authentication failed!", response, logNr);
 				return;
 			}
 		}
-                
-                // verify response code
-                // only going to allow 301 to 308 for our purposes
-                if ((responseCode < 301) || (responseCode > 308)) {
-			// bad response code, set to default 302
-			if (loggingEnabled) {
-				System.out.println("[mod_cfml] WARN: Invalid response code provided. Defaulting to 307.");
-			}
-			this.responseCode = 307;
-			return;
-		}
 
-		// Get the Host name value from the HTTP header
-		tcHost = request.getHeader("Host");
-		// Optional: get the webserver-hostContext-ID
-		tcMainHost = request.getHeader("X-Webserver-Context");
-		// the X-Webserver-Context header might not be available
-		if (tcMainHost == null || tcMainHost.isEmpty()) {
-			tcMainHost = tcHost;
-		}
-		// host names should be lowercase, but Tomcat will not complain, just convert it to lowercase after we use it as a hostname/alias name
-		if (tcMainHost != null)
-		{
-			tcMainHost = tcMainHost.toLowerCase();
-			// remove the port number from the host value if it's present
-			tcMainHost = removePortFromHost(tcMainHost, loggingEnabled);
-		}
-		if (tcHost != null) {
-			tcHost = tcHost.toLowerCase();
-			// remove the port number from the host value if it's present
-			tcHost = removePortFromHost(tcHost, loggingEnabled);
-		}
+		// Get the Host name value from the HTTP header, and optional: get the webserver-hostContext-ID.
+		// Both are lowercased and stripped from their port number; the main host is also made safe to be used as a host name.
+		HostNames.Normalized hostNames = hostNameCache.normalize(request.getHeader("Host"),
+				request.getHeader("X-Webserver-Context"));
+		tcHost = hostNames.host;
+		tcMainHost = hostNames.mainHost;
 
 		// verify the host value exists and isn't blank
 		if (tcMainHost == null || tcMainHost.isEmpty() || tcHost == null || tcHost.isEmpty()) {
 			// bad host? Skip this Valve.
-			if (loggingEnabled) {
-				System.out.println("[mod_cfml] FATAL: Invalid host: Null or zero-length.");
-			}
+			ValveLog.info(0, "Invalid host: Null or zero-length.");
+			stats.requestsPassedThrough.increment();
 			getNext().invoke(request, response);
 			return;
 		}
 
-		// if X-Webserver-Context is given, it might contain characters not allowed by Tomcat
-		// to be used as the VirtualHost HostName (eg. spaces, semi-colons, colons, slashes)
-		Pattern UNSAFE_CHARS = Pattern.compile("[^a-z0-9\\._-]");
-		Matcher matcher = UNSAFE_CHARS.matcher(tcMainHost);
-		while (matcher.find()) {
-			String unsafeChar = matcher.group();
-			tcMainHost = tcMainHost.replace(unsafeChar, "-chr" + ((int)unsafeChar.charAt(0)) + "-");
-		}
-
 		// Get the URI so we can pass it to ourselves again if needed
 		String tcURI = request.getDecodedRequestURI();
 		String tcURIParams = request.getQueryString();
 
 		// logging for debugging purposes
-		if (loggingEnabled) {
-			String logData = "[mod_cfml]["+logNr+"] Decoded Request URI => " + tcURI
-					+ "\n[mod_cfml]["+logNr+"] QueryString => " + tcURIParams
-					+ "\n[mod_cfml]["+logNr+"] DocRoot Value => " + tcDocRoot;
-			if (!tcMainHost.equals(tcHost)) {
-				logData += "\n[mod_cfml]["+logNr+"] Webserver main Host => " + tcMainHost
-						+ "\n[mod_cfml]["+logNr+"] Alias Value => " + tcHost;
-			} else {
-				logData += "\n[mod_cfml]["+logNr+"] Host Value => " + tcHost;
-			}
-			System.out.println(logData);
+		ValveLog.info(logNr, "Decoded Request URI => {}", tcURI);
+		ValveLog.info(logNr, "QueryString => {}", tcURIParams);
+		ValveLog.info(logNr, "DocRoot Value => {}", tcDocRoot);
+		if (!tcMainHost.equals(tcHost)) {
+			ValveLog.info(logNr, "Webserver main Host => {}", tcMainHost);
+			ValveLog.info(logNr, "Alias Value => {}", tcHost);
+		} else {
+			ValveLog.info(logNr, "Host Value => {}", tcHost);
 		}
 
 		// get system vars
 		Host currentHost = (Host) getContainer();
 		Engine engine = (Engine) currentHost.getParent();
 
-		// see if the host already exists
-		if (engine.findChild(tcHost) != null) {
-			// This situation can occur in a race condition, when multiple requests come in for the same context.
-			// It is also weirdly possible that the user came back here, after our config changes and previous redirect,
-			// meaning the setup did not work as expected.
+		// is another request creating this host right now? Then wait for it, instead of redirecting in circles
+		PendingHost pendingHost = pendingHosts.get(tcHost);
+		if (pendingHost != null) {
+			waitForPendingHost(cfg, pendingHost, tcHost, tcURI, tcURIParams, response, logNr);
+			return;
+		}
+
+		// see if the host already exists, as host or as alias
+		Host existingHost = hostIndex.findOwner(tcHost);
+		if (existingHost != null) {
+			// The host was created by a request which has finished already, but this request was sent to the default host anyway.
+			// This is possible for requests which were routed before the host existed, but it can also mean that the user
+			// came back here after our config changes and previous redirect, meaning the setup did not work as expected.
+			// if the context is not fully alive yet, wait for it. A started context is known to the host index, so that
+			// case takes no locks. The host itself is only asked when the index knows no context, eg. while it is starting.
+			Container rootContext = hostIndex.findRootContext(existingHost);
+			if (rootContext == null) {
+				rootContext = existingHost.findChild("");
+			}
+			// A host which is still starting may not have its ROOT context yet. The lifecycle states before STARTED
+			// are the ones on the way up; a stopped or failed context will not start by waiting for it.
+			boolean starting = rootContext != null ? rootContext.getState().compareTo(LifecycleState.STARTED) < 0
+					: existingHost.getState().compareTo(LifecycleState.STARTED) < 0;
+			if (starting) {
+				ContextReadyListener contextReady = new ContextReadyListener();
+				contextReady.watch(existingHost);
+				contextReady.await(cfg.waitForContextMillis);
+				contextReady.unwatch(existingHost);
+			}
+			addTimingHeaders(cfg, response, logNr, null);
 			// We do a redirect to try again, but also try to catch eternal redirects here, by adding a url parameter.
-			if (tcURIParams != null && tcURIParams.length() > redirectKey.length()
-					&& tcURIParams.substring(tcURIParams.length() - 1 - redirectKey.length()) == "&"+redirectKey) {
+			if (tcURIParams != null && tcURIParams.endsWith(cfg.redirectMarker)) {
 				String msg = "Host [" + tcHost + "] already exists, but new requests still land at the localhost host.";
 				// host already exist? Skip this Valve.
-				if (loggingEnabled) {
-					System.out.println("[mod_cfml]["+logNr+"] FATAL: "+msg);
-				}
+				ValveLog.warn(logNr, "{}", msg);
+				stats.loopDetections.incrementAndGet();
 				handleError(508, msg, response, logNr);// 508: Loop Detected
 				return;
 			} else {
@@ -284,134 +810,186 @@ public class core extends ValveBase implements Serializable {
 				if (tcURIParams == null) {
 					tcURIParams = "";
 				}
-				tcURIParams += "&"+redirectKey;
-				// wait a sec, for the context to fully come alive
-				try {
-					Thread.sleep(500);
-				} catch(InterruptedException e) {
-					// too bad
-				}
+				tcURIParams += cfg.redirectMarker;
 				// now redirect
-				doRedirect(tcURI, tcURIParams, response, loggingEnabled, logNr, responseCode);
+				doRedirect(tcURI, tcURIParams, response, logNr, cfg.responseCode);
 				return;
 			}
 
 		}
 
-		// set base variables for tcDocRoot file system check
-		File file = new File(tcDocRoot);
-		File tcDocRootFile = file.getCanonicalFile();
+		// set base variables for tcDocRoot file system check. The outcome is cached for docRootCacheTime milliseconds,
+		// so a misconfigured frontend which keeps sending a bad DocRoot does not hit the file system every time.
+		PathCache.Entry tcDocRootEntry = pathCache.lookup(tcDocRoot, cfg.docRootCacheTime, cfg.docRootCacheSize);
 
-		if (!tcDocRootFile.isDirectory()) {
+		if (!tcDocRootEntry.directory) {
 			// log the invalid directory if we have logging on
-			if (loggingEnabled) {
-				System.out.println("[mod_cfml]["+logNr+"] FATAL: DocRoot value [" + tcDocRoot + "] failed isDirectory() check. Directory may not exist, or Tomcat may not have permission to check it.");
-			}
+			ValveLog.info(logNr, "DocRoot value [{}] failed isDirectory() check. Directory may not exist, or Tomcat may not have permission to check it.", tcDocRoot);
+			stats.requestsPassedThrough.increment();
 			getNext().invoke(request, response);
 			return;
 		}
 
+		// With consolidateDocRoots, a host name for a DocRoot which already has a host of its own becomes an alias of that host,
+		// instead of getting another context. Aliases are not throttled, and do not count against maxContexts.
+		// A frontend which sends X-Webserver-Context groups the host names itself, so its grouping is kept.
+		if (cfg.consolidateDocRoots && hostNames.rawContext == null && hostIndex.findHost(tcMainHost) == null) {
+			String docRootHost = docRootHosts.get(tcDocRootEntry.canonicalFile.getPath());
+			if (docRootHost != null && hostIndex.findHost(docRootHost) != null) {
+				ValveLog.info(logNr, "DocRoot [{}] is served by Host [{}] already; [{}] becomes an alias of it", tcDocRoot, docRootHost, tcHost);
+				tcMainHost = docRootHost;
+			}
+		}
+
+		// From here on, this request is responsible for creating the host / adding the alias.
+		// Other requests for the same host wait for us to finish, instead of all trying the same thing.
+		pendingHost = new PendingHost();
+		PendingHost otherPendingHost = pendingHosts.putIfAbsent(tcHost, pendingHost);
+		if (otherPendingHost != null) {
+			waitForPendingHost(cfg, otherPendingHost, tcHost, tcURI, tcURIParams, response, logNr);
+			return;
+		}
+
+		// how long each phase of the host creation takes
+		ProvisionTrace trace = new ProvisionTrace();
+		try {
 
 // Check if we need to add a Host, or just an Alias
 // Aliases do not need to be throttled
-		boolean addAsAlias = (!tcMainHost.equals(tcHost)) && (engine.findChild(tcMainHost) != null);
+			boolean addAsAlias = (!tcMainHost.equals(tcHost)) && (hostIndex.findHost(tcMainHost) != null);
 
 // BEGIN Throttling
-		
-		if (!addAsAlias) {
-			String errorMessage = null;
-			synchronized(lockObject) {
-				Date newNow = new Date();
-				// verify timeBetweenContexts
-				if (lastContextTime != 0) {
-					// if it's not null, ensure we've waited our timeBetweenContexts
-					if ((lastContextTime + timeBetweenContexts) > newNow.getTime()) {
-						// if enough time hasn't passed yet, send a "wait" response
-						errorMessage = "Time Between Contexts has not been fulfilled. Please wait a few moments and try again.";
-					}
-				}
-				// verify maxContexts
-				if (throttleValue >= maxContexts) {
-					// if maxContexts reached, refuse the request for today
-					errorMessage = "MaxContexts limit reached. No more contexts can be created!";
-				}
 
-				// save the current time, so a next request can do a check for the timeBetweenContexts
-				// set the lastContext value to now
-				if (errorMessage == null) {
-					lastContextTime = newNow.getTime();
+			// a new host reserves its maxContexts slot while passing the throttle, so hosts which are
+			// created in parallel can never exceed maxContexts. The slot is handed back if no host gets created.
+			boolean slotReserved = false;
+			if (!addAsAlias) {
+				long throttleStart = System.nanoTime();
+				SlotRefusal refusal = reserveContextSlot(cfg, true, tcDocRootEntry.canonicalFile.getParent());
+				trace.add(ProvisionTrace.THROTTLE, System.nanoTime() - throttleStart);
+				slotReserved = (refusal == null);
+
+				if (refusal != null) {
+					stats.throttleRejections.incrementAndGet();
+					pendingHost.setError(503, refusal.message, refusal.retryAfter);
+					trace.finish();
+					addTimingHeaders(cfg, response, logNr, trace);
+					handleError(503, refusal.message, response, logNr, refusal.retryAfter);
+					return;
 				}
 			}
-
-			if (errorMessage != null) {
-				handleError(503, errorMessage, response, logNr);
-				return;
-			}
-		}
 // END Throttling
 
 // everything checks out, create the new host / add the alias
 
-		StandardHost host;
-
+			boolean hostAdded = false;
+			try {
 // STEP 1: check if the mainHost exists, and we need to add the current Host as alias
-		if (!tcMainHost.equals(tcHost)) {
-			if (engine.findChild(tcMainHost) != null) {
-				Container child = engine.findChild(tcMainHost);
-				if (!(child instanceof StandardHost)) {
-					System.out.println("[mod_cfml]["+logNr+"] FATAL: The Tomcat Host [" + tcMainHost + "], parent for host-alias [" + tcHost + "], is not an instance of StandardHost! (type: " + child.getClass().getName() + ")");
-					getNext().invoke(request, response);
-					return;
+				if (!tcMainHost.equals(tcHost)) {
+					Container child = hostIndex.findHost(tcMainHost);
+					if (child != null) {
+						if (!(child instanceof StandardHost)) {
+							ValveLog.error(logNr, "The Tomcat Host [{}], parent for host-alias [{}], is not an instance of StandardHost! (type: {})", tcMainHost, tcHost, child.getClass().getName());
+							stats.requestsPassedThrough.increment();
+							getNext().invoke(request, response);
+							return;
+						}
+						ValveLog.info(logNr, "Adding host alias [{}] to existing Host [{}]", tcHost, tcMainHost);
+						((StandardHost) child).addAlias(tcHost);
+						hostRegistry.addAlias(tcMainHost, tcHost);
+						stats.aliasesAdded.incrementAndGet();
+						addAsAlias = true;
+						// ToDo PK: test if we can do the redirect here already, to get the user to the newly added alias site.
+						// Underneath, we're only re-adding the context files.
+						// Because the host index knows tcMainHost, the main-host already exists in config somewhere.
+					}
 				}
-				if (loggingEnabled) {
-					System.out.println("[mod_cfml]["+logNr+"] INFO: Adding host alias [" + tcHost + "] to existing Host [" + tcMainHost + "]");
+
+// STEP 2 - 5: create the context
+				hostAdded = createContext(cfg, engine, tcMainHost, tcHost, tcDocRoot, addAsAlias, logNr, trace);
+			} finally {
+// STEP 6 - hand back the reserved context slot if no new host was created after all, also when createContext failed
+				if (slotReserved && !hostAdded) {
+					releaseContextSlot();
 				}
-				host = (StandardHost) child;
-				host.addAlias(tcHost);
-				addAsAlias = true;
-				// ToDo PK: test if we can do the redirect here already, to get the user to the newly added alias site.
-				// Underneath, we're only re-adding the context files.
-				// Because "engine.findChild(tcMainHost) != null", the main-host already exists in config somewhere.
 			}
+		} finally {
+			// let the waiting requests continue
+			pendingHosts.remove(tcHost, pendingHost);
+			pendingHost.finish();
 		}
 
+		trace.finish();
+		stats.record(trace);
+		addTimingHeaders(cfg, response, logNr, trace);
+
+// STEP 7 - call ourselves again so we bypass localhost
+		doRedirect(tcURI, tcURIParams, response, logNr, cfg.responseCode);
+	}
+
+
+	// Creates the config and work directories plus the context xml file for the given host, and adds the host
+	// to the engine if it is not an alias. Returns true if a new host was added to the engine; false for an alias,
+	// or if the host already existed or could not be added.
+	private boolean createContext(Config cfg, Engine engine, String tcMainHost, String tcHost, String tcDocRoot, boolean addAsAlias, int logNr,
+			ProvisionTrace trace) throws IOException {
+		long phaseStart;
+		File file;
+		StandardHost host;
 		boolean errorFound = false;
 
-		synchronized(lockObject) {
+		phaseStart = System.nanoTime();
+		synchronized(getHostLock(tcMainHost)) {
+			trace.add(ProvisionTrace.LOCK_WAIT, System.nanoTime() - phaseStart);
 			// Because the context-creation is locked with "synchronized", we might have waited for another thread
 			// which created the same context just now... Check this!
 			if (engine.findChild(tcHost) != null) {
 				// host already exists!
-				if (loggingEnabled) {
-					System.out.println("[mod_cfml]["+logNr+"] INFO: Web context for [" + tcHost + "] has been created meanwhile.");
-				}
+				ValveLog.info(logNr, "Web context for [{}] has been created meanwhile.", tcHost);
+				errorFound = true;
+			} else if (!addAsAlias && !tcHost.equals(tcMainHost) && engine.findChild(tcMainHost) instanceof StandardHost) {
+				// The main host of this alias has been created meanwhile, by the request we waited for. Creating it
+				// again would remove the config and work directories of the running host, so only add the alias.
+				ValveLog.info(logNr, "Host [{}] has been created meanwhile. Adding host alias [{}]", tcMainHost, tcHost);
+				((StandardHost) engine.findChild(tcMainHost)).addAlias(tcHost);
+				hostRegistry.addAlias(tcMainHost, tcHost);
+				stats.aliasesAdded.incrementAndGet();
+				addAsAlias = true;
 			} else {
+				String contextXml = createContextXml(tcDocRoot);
+				String fingerprint = ContextFingerprint.create(tcDocRoot, contextXml, versionNumber);
 // STEP 2 - Check/Create the XML config and work directories
 				// set the config directory value
 				String newHostConfDir = System.getProperty(Globals.CATALINA_BASE_PROP) + "/conf/Catalina/" + tcMainHost;
 				File newHostConfDirFile = null;
 				file = new File(newHostConfDir);
-				newHostConfDirFile = file.getCanonicalFile();
+				newHostConfDirFile = pathCache.lookup(newHostConfDir, cfg.docRootCacheTime, cfg.docRootCacheSize).canonicalFile;
+
+				// if the host gets the same DocRoot and config as last time, the old directories are still valid,
+				// and the compiled classes in the work directory can be used again
+				boolean keepDirs = !addAsAlias && preserveWorkDir
+						&& ContextFingerprint.matches(newHostConfDirFile, fingerprint, contextXml);
+				if (keepDirs) {
+					ValveLog.info(logNr, "DocRoot and context config are unchanged; keeping the config and work directories of [{}]", tcMainHost);
+				}
 
 				// see if the directory exists already
 				if (!newHostConfDirFile.isDirectory()) {
 					// if it doesn't exist, create it
-					if (loggingEnabled) {
-						System.out.println("[mod_cfml]["+logNr+"] INFO: Creating new config directory: " + newHostConfDirFile);
-					}
+					ValveLog.info(logNr, "Creating new config directory: {}", newHostConfDirFile);
 					file.mkdir();
-				} else if (addAsAlias == false) {
+					pathCache.remove(newHostConfDir);
+				} else if (addAsAlias == false && !keepDirs) {
 					// if it does exist, remove it (and everything under it)
 					// because it's from an old config
-					if (loggingEnabled) {
-						System.out.println("[mod_cfml]["+logNr+"] INFO: Removing old config directory: " + newHostConfDirFile);
-					}
-					deleteDir(file);
+					ValveLog.info(logNr, "Removing old config directory: {}", newHostConfDirFile);
+					phaseStart = System.nanoTime();
+					removeDir(file, logNr);
+					trace.add(ProvisionTrace.DIR_CLEANUP, System.nanoTime() - phaseStart);
 					// now make the directory again so we start with a clean slate
-					if (loggingEnabled) {
-						System.out.println("[mod_cfml]["+logNr+"] INFO: Creating new config directory: " + newHostConfDirFile);
-					}
+					ValveLog.info(logNr, "Creating new config directory: {}", newHostConfDirFile);
 					file.mkdir();
+					pathCache.remove(newHostConfDir);
 				}
 
 				// set the work directory value
@@ -419,139 +997,568 @@ public class core extends ValveBase implements Serializable {
 
 				File newHostWorkDirFile = null;
 				file = new File(newHostWorkDir);
-				newHostWorkDirFile = file.getCanonicalFile();
+				newHostWorkDirFile = pathCache.lookup(newHostWorkDir, cfg.docRootCacheTime, cfg.docRootCacheSize).canonicalFile;
 
 				// see if the directory exists already
 				if (!newHostWorkDirFile.isDirectory()) {
 					// if it doesn't exist, ignore it
-					if (loggingEnabled) {
-						System.out.println("[mod_cfml]["+logNr+"] INFO: Work directory doesn't exist: " + newHostWorkDirFile);
-					}
-				} else if (addAsAlias == false) {
+					ValveLog.info(logNr, "Work directory doesn't exist: {}", newHostWorkDirFile);
+				} else if (addAsAlias == false && !keepDirs) {
 					// if it does exist, remove it (and everything under it)
 					// because it's from an old config
-					if (loggingEnabled) {
-						System.out.println("[mod_cfml]["+logNr+"] INFO: Removing old work directory: " + newHostWorkDirFile);
-					}
-					deleteDir(file);
+					ValveLog.info(logNr, "Removing old work directory: {}", newHostWorkDirFile);
+					phaseStart = System.nanoTime();
+					removeDir(file, logNr);
+					pathCache.remove(newHostWorkDir);
+					trace.add(ProvisionTrace.DIR_CLEANUP, System.nanoTime() - phaseStart);
 				}
 
 // STEP 3 - Write the context XML config
 				String newHostConfFile = newHostConfDirFile + "/ROOT.xml";
 				file = new File(newHostConfFile);
 				if (!file.exists()) {
-					if (loggingEnabled) {
-						System.out.println("[mod_cfml]["+logNr+"] INFO: Creating context file: " + newHostConfFile);
-					}
+					ValveLog.info(logNr, "Creating context file: {}", newHostConfFile);
+					phaseStart = System.nanoTime();
 					PrintWriter out = new PrintWriter(new FileOutputStream(file));
-					out.println("<?xml version='1.0' encoding='utf-8'?>");
-					out.println("<Context docBase=\"" + tcDocRoot + "\">");
-					out.println("  <WatchedResource>WEB-INF/web.xml</WatchedResource>");
-					// the following line is THE difference between slow and fast Context loading. (eg. 3,000 ms vs 150 ms.)
-					if (!scanClassPaths) {
-						out.println("  <JarScanner scanClassPath=\"false\" />");
-					}
-					out.println("</Context>");
+					out.print(contextXml);
 					out.flush(); // write to the file
 					out.close(); // close out the file
+					if (addAsAlias == false) {
+						ContextFingerprint.write(newHostConfDirFile, fingerprint);
+					}
+					trace.add(ProvisionTrace.ROOT_XML, System.nanoTime() - phaseStart);
 				}
 
 // STEP 4 - Create the context
+				// gets notified when Tomcat has started the ROOT context of the host
+				ContextReadyListener contextReady = new ContextReadyListener();
 				if (addAsAlias == false) {
 					host = new StandardHost();
 					// log it
-					if (loggingEnabled) {
-						System.out.println("[mod_cfml]["+logNr+"] INFO: Creating New Host... ");
-						// System.out.println("setAppBase Value => " + tcDocRootFile.toString());
-						System.out.println("[mod_cfml]["+logNr+"] INFO: setName Value => " + tcMainHost);
-					}
-					host.addLifecycleListener(new HostConfig());
+					ValveLog.info(logNr, "Creating New Host... ");
+					// System.out.println("setAppBase Value => " + tcDocRootFile.toString());
+					ValveLog.info(logNr, "setName Value => {}", tcMainHost);
 					host.setAppBase("webapps");
 					// host.setAppBase(tcDocRootFile.toString());
 					host.setName(tcMainHost);
-					host.setAutoDeploy(true);
-					host.setDeployOnStartup(true);
-					host.setDeployXML(true);
+					if (directDeploy) {
+						// no HostConfig: we deploy the ROOT context ourselves in STEP 5, and watch its files
+						host.setAutoDeploy(false);
+						host.setDeployOnStartup(false);
+					} else {
+						host.addLifecycleListener(new HostConfig());
+						host.setAutoDeploy(true);
+						host.setDeployOnStartup(true);
+						host.setDeployXML(true);
+					}
 					if (!tcHost.equals(tcMainHost)) {
 						host.addAlias(tcHost);
 					}
+					if (leanHosts) {
+						// no ErrorReportValve in the pipeline: errors of the site get Tomcat's bare status response
+						host.setErrorReportValveClass("");
+						// the config directory was created in STEP 2, and all our hosts share the appBase "webapps"
+						host.setCreateDirs(false);
+					}
+					// remember the host, and keep track of its usage. The temporary hosts of measureHostFootprint are
+					// not remembered, so they are never saved, re-created after a restart or shared.
+					boolean footprintHost = HostProvisioner.isFootprintHost(tcMainHost);
+					HostRegistry.Record record;
+					if (footprintHost) {
+						record = new HostRegistry.Record(tcMainHost, tcDocRoot);
+					} else {
+						record = hostRegistry.register(tcMainHost, tcDocRoot);
+					}
+					record.lastHit = System.currentTimeMillis();
+					if (!tcHost.equals(tcMainHost)) {
+						hostRegistry.addAlias(tcMainHost, tcHost);
+					}
+					host.getPipeline().addValve(new HostHitValve(record, !leanHosts));
+					if (cacheJarScans) {
+						checkSkippedTldJars(tcDocRoot, logNr);
+						jarScanDocRoots.add(tcDocRoot);
+					}
+					contextReady.watch(host);
+					// requests for the host find it while it starts, and wait for it, instead of trying to create it again
+					hostIndex.addHost(host);
 					// make it
+					phaseStart = System.nanoTime();
 					try {
 						engine.addChild(host);
+						stats.hostsCreated.incrementAndGet();
+						// the first host for a DocRoot is the one later host names are added to (consolidateDocRoots),
+						// unless that host was removed from the engine behind our back
+						String docRootPath = pathCache.lookup(tcDocRoot, cfg.docRootCacheTime, cfg.docRootCacheSize).canonicalFile.getPath();
+						String docRootHost = footprintHost ? null : docRootHosts.putIfAbsent(docRootPath, tcMainHost);
+						if (docRootHost != null && hostIndex.findHost(docRootHost) == null) {
+							docRootHosts.replace(docRootPath, docRootHost, tcMainHost);
+						}
 					} catch (Exception e) {
-						System.out.println("[mod_cfml]["+logNr+"] ERROR: " + e.toString());
+						ValveLog.error(logNr, "Could not add host [{}]: {}", tcMainHost, e);
+						hostRegistry.remove(tcMainHost);
+						if (engine.findChild(tcMainHost) != host) {
+							hostIndex.removeHost(host);
+						}
 						errorFound = true;
 					}
+					trace.add(ProvisionTrace.ADD_CHILD, System.nanoTime() - phaseStart);
+				} else {
+					host = (StandardHost) engine.findChild(tcMainHost);
+					if (host == null) {
+						ValveLog.error(logNr, "Host [{}] has been removed meanwhile.", tcMainHost);
+						return false;
+					}
+					contextReady.watch(host);
 				}
 
-// STEP 5 - ensure the context config files and work directory exist
+// STEP 5 - wait until Tomcat has started the context
 				if (!errorFound) {
-					if (loggingEnabled) {
-						System.out.println("[mod_cfml]["+logNr+"] INFO: Verifying context files...");
-					}
-					boolean _found = false;
-					File tcContextXMLFile = null;
-					File tcContextXMLFilePointer = null;
-
-					tcContextXMLFilePointer = new File(newHostConfFile);
-					tcContextXMLFile = tcContextXMLFilePointer.getCanonicalFile();
-					// wait for the specified number of seconds
-					for (int i = 0; i <= waitForContext*10; i++) {
-						// check to see if the directory exists
-						if (newHostConfDirFile.isDirectory()) {
-							// if it exists, check the file too
-							if (tcContextXMLFile.isFile()) {
-								// if the dir and file exist, check for the work directory
-								if (newHostWorkDirFile.isDirectory()) {
-									// if the work directory exists, end this loop
-									_found = true;
-									break;
-								}
-							}
+					ValveLog.info(logNr, "Waiting for the context to start...");
+					phaseStart = System.nanoTime();
+					if (directDeploy && addAsAlias == false) {
+						// starts the context right here, on this thread
+						try {
+							directDeployer.deploy(host, new File(newHostConfFile), tcDocRoot);
+						} catch (Exception e) {
+							ValveLog.error(logNr, "Could not deploy the context of host [{}]: {}", tcMainHost, e);
 						}
-						if (waitForContext > i) {
-							if (loggingEnabled) {
-								System.out.println("[mod_cfml]["+logNr+"] INFO: Context files do not yet exist! Will check again after 0.1 second... (" + ((i + 1)/10) + ")");
-							}
-							try {
-								Thread.sleep(100);
-							} catch (InterruptedException e) {
+					}
+					boolean started = contextReady.await(cfg.waitForContextMillis);
+					trace.add(ProvisionTrace.CONTEXT_START, System.nanoTime() - phaseStart);
+					if (started) {
+						ValveLog.info(logNr, "Context for [{}] has started.", tcMainHost);
+					} else {
+						ValveLog.warn(logNr, "Context for [{}] did not start within {} seconds! Will continue, but likely to result in error.", tcMainHost, cfg.waitForContextMillis / 1000);
+					}
+				}
+				contextReady.unwatch(host);
+			}
+		}
+		return !errorFound && !addAsAlias;
+	}
+
+
+	// the contents of the ROOT.xml for a new host
+	private String createContextXml(String tcDocRoot) {
+		String newLine = System.getProperty("line.separator");
+		StringBuilder xml = new StringBuilder();
+		xml.append("<?xml version='1.0' encoding='utf-8'?>").append(newLine);
+		xml.append("<Context docBase=\"").append(tcDocRoot).append("\">").append(newLine);
+		xml.append("  <WatchedResource>WEB-INF/web.xml</WatchedResource>").append(newLine);
+		// the following line is THE difference between slow and fast Context loading. (eg. 3,000 ms vs 150 ms.)
+		if (!scanClassPaths) {
+			xml.append("  <JarScanner scanClassPath=\"false\" />").append(newLine);
+		}
+		xml.append("</Context>").append(newLine);
+		return xml.toString();
+	}
+
+
+	// Waits until the request which is creating the given host is done, and then sends the user to the new host.
+	// If the host could not be created, the user gets the same error as the creating request.
+	private void waitForPendingHost(Config cfg, PendingHost pendingHost, String tcHost, String tcURI, String tcURIParams, Response response, int logNr)
+			throws IOException, ServletException {
+		ValveLog.info(logNr, "Host [{}] is being created by another request. Waiting for it to finish...", tcHost);
+		ProvisionTrace trace = new ProvisionTrace();
+		long waitStart = System.nanoTime();
+		boolean finished = pendingHost.await(cfg.waitForContextMillis);
+		long waited = System.nanoTime() - waitStart;
+		trace.add(ProvisionTrace.COALESCE_WAIT, waited);
+		trace.finish();
+		stats.record(ProvisionTrace.COALESCE_WAIT, waited);
+		addTimingHeaders(cfg, response, logNr, trace);
+		if (!finished) {
+			ValveLog.warn(logNr, "Host [{}] is still being created after {} seconds. Redirecting anyway.", tcHost, cfg.waitForContextMillis / 1000);
+		} else if (pendingHost.getErrorCode() != 0) {
+			handleError(pendingHost.getErrorCode(), pendingHost.getErrorMessage(), response, logNr, pendingHost.getRetryAfter());
+			return;
+		}
+		doRedirect(tcURI, tcURIParams, response, logNr, cfg.responseCode);
+	}
+
+
+	// With serverTiming, adds the X-ModCFML-Trace header with the number of this request in the log, so a slow response
+	// can be matched with the log lines. Requests which created a host, or waited for one, also get a Server-Timing header.
+	private static void addTimingHeaders(Config cfg, Response response, int logNr, ProvisionTrace trace) {
+		if (!cfg.serverTiming || response.isCommitted()) {
+			return;
+		}
+		response.setHeader("X-ModCFML-Trace", String.valueOf(logNr));
+		if (trace != null) {
+			response.setHeader("Server-Timing", trace.toServerTiming());
+		}
+	}
+
+
+	// Checks maxContexts, and optionally the context creation rate. If a new context may be created, it takes one
+	// maxContexts slot and returns null. Otherwise, it returns why no context may be created, and when to try again.
+	private SlotRefusal reserveContextSlot(Config cfg, boolean throttled, String docRootParent) {
+		SlotRefusal refusal = null;
+		synchronized(lockObject) {
+			long now = System.currentTimeMillis();
+			TokenBucket parentBucket = null;
+			if (throttled) {
+				// verify timeBetweenContexts: each context takes a token, and a token comes back every timeBetweenContexts
+				long waitTime = contextBucket.waitTime(cfg.contextBurst, cfg.timeBetweenContexts, now);
+				// optionally, also limit the contexts created within the same parent directory
+				if (cfg.timeBetweenParentContexts > 0 && docRootParent != null) {
+					parentBucket = parentContextBuckets.get(docRootParent);
+					if (parentBucket == null) {
+						parentBucket = new TokenBucket();
+						parentContextBuckets.put(docRootParent, parentBucket);
+					}
+					waitTime = Math.max(waitTime, parentBucket.waitTime(cfg.contextBurst, cfg.timeBetweenParentContexts, now));
+				}
+				if (waitTime > 0) {
+					// if enough time hasn't passed yet, send a "wait" response
+					refusal = new SlotRefusal("Time Between Contexts has not been fulfilled. Please wait a few moments and try again.",
+							(int) ((waitTime + 999) / 1000));
+				}
+			}
+			// verify maxContexts
+			if (throttleValue >= cfg.maxContexts) {
+				// if maxContexts reached, refuse the request for today
+				refusal = new SlotRefusal("MaxContexts limit reached. No more contexts can be created!", 0);
+			}
+
+			// save the current time, and take the tokens
+			if (refusal == null) {
+				lastContextTime = now;
+				throttleValue += 1;
+				if (throttled) {
+					contextBucket.take();
+					if (parentBucket != null) {
+						parentBucket.take();
+					}
+				}
+			}
+		}
+		return refusal;
+	}
+
+	static int getThrottleValue() {
+		synchronized(lockObject) {
+			return throttleValue;
+		}
+	}
+
+	static long getLastContextTime() {
+		synchronized(lockObject) {
+			return lastContextTime;
+		}
+	}
+
+	// hand back a slot taken with reserveContextSlot, when no new host was created after all
+	private static void releaseContextSlot() {
+		synchronized(lockObject) {
+			throttleValue -= 1;
+		}
+	}
+
+
+	// Creates a host without an incoming request, eg. for hosts which existed before a restart, or from a manifest.
+	// timeBetweenContexts does not apply here, but maxContexts does. If the host exists already, only the missing
+	// aliases are added. Returns null if all went well, or why the host could not be created.
+	String provisionHost(Engine engine, String hostName, Collection<String> aliases, String docRoot, int logNr)
+			throws IOException {
+		if (engine.findChild(hostName) != null) {
+			addAliases(engine, hostName, aliases, logNr);
+			return null;
+		}
+		// the same settings for the whole host creation, like a request uses
+		Config cfg = config;
+		if (!pathCache.lookup(docRoot, cfg.docRootCacheTime, cfg.docRootCacheSize).directory) {
+			ValveLog.error(logNr, "Not creating host [{}]: DocRoot [{}] is not a directory.", hostName, docRoot);
+			return "DocRoot [" + docRoot + "] is not a directory";
+		}
+		// requests for this host wait for us, the same way they wait for another request
+		PendingHost pendingHost = new PendingHost();
+		if (pendingHosts.putIfAbsent(hostName, pendingHost) != null) {
+			// a request is creating this host right now
+			return null;
+		}
+		try {
+			SlotRefusal refusal = reserveContextSlot(cfg, false, null);
+			if (refusal != null) {
+				ValveLog.error(logNr, "Not creating host [{}]: {}", hostName, refusal.message);
+				pendingHost.setError(503, refusal.message, refusal.retryAfter);
+				return refusal.message;
+			}
+			ProvisionTrace trace = new ProvisionTrace();
+			boolean hostAdded = false;
+			try {
+				hostAdded = createContext(cfg, engine, hostName, hostName, docRoot, false, logNr, trace);
+			} finally {
+				if (!hostAdded) {
+					releaseContextSlot();
+				}
+			}
+			if (hostAdded) {
+				trace.finish();
+				stats.record(trace);
+			} else if (engine.findChild(hostName) == null) {
+				// createContext also returns false if someone else created the host meanwhile
+				return "The host could not be added to Tomcat";
+			}
+			addAliases(engine, hostName, aliases, logNr);
+			return null;
+		} finally {
+			pendingHosts.remove(hostName, pendingHost);
+			pendingHost.finish();
+		}
+	}
+
+
+	// adds the aliases the given host does not have yet
+	private void addAliases(Engine engine, String hostName, Collection<String> aliases, int logNr) {
+		Container host = engine.findChild(hostName);
+		if (!(host instanceof StandardHost)) {
+			return;
+		}
+		List<String> existingAliases = Arrays.asList(((StandardHost) host).findAliases());
+		for (String alias : aliases) {
+			if (!alias.equals(hostName) && !existingAliases.contains(alias)) {
+				ValveLog.info(logNr, "Adding host alias [{}] to existing Host [{}]", alias, hostName);
+				((StandardHost) host).addAlias(alias);
+				hostRegistry.addAlias(hostName, alias);
+				stats.aliasesAdded.incrementAndGet();
+			}
+		}
+	}
+
+
+	// the number for the log messages of a new request or background task
+	int nextLogNr() {
+		return requestNr.incrementAndGet();
+	}
+
+
+	// Creates all hosts from the host registry in the background, the most used hosts first.
+	private void startWarmup(final Engine engine) {
+		List<HostRegistry.Record> records = hostRegistry.getRecordsByHits();
+		if (records.isEmpty()) {
+			return;
+		}
+		// hosts over the maxActiveContexts limit would only be removed again by the next background run
+		if (maxActiveContexts > 0 && records.size() > maxActiveContexts) {
+			ValveLog.info(0, "Only re-creating the {} most used of {} hosts from the host registry (maxActiveContexts)", maxActiveContexts, records.size());
+			records = records.subList(0, maxActiveContexts);
+		}
+		ValveLog.info(0, "Re-creating {} hosts from the host registry, using {} threads", records.size(), Math.max(1, warmupThreads));
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, warmupThreads), new ThreadFactory() {
+			private final AtomicInteger threadNr = new AtomicInteger();
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "mod_cfml-warmup-" + threadNr.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		for (final HostRegistry.Record record : records) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					int logNr = nextLogNr();
+					try {
+						provisionHost(engine, record.name, record.aliases, record.docRoot, logNr);
+					} catch (Exception e) {
+						ValveLog.error(logNr, "Could not re-create host [{}]: {}", record.name, e);
+					}
+				}
+			});
+		}
+		// the threads stop when all hosts are done
+		executor.shutdown();
+	}
+
+
+	// Publishes our hosts in the shared registry, and creates the hosts which other servers published there.
+	// This runs in the background; a host which is seen for the first time is created right away, but a host which
+	// we removed for being idle is not created again until a request comes in for it.
+	private void syncSharedRegistry(final Engine engine) {
+		final SharedHostRegistry registry = sharedRegistry;
+		ExecutorService executor = sharedRegistryExecutor;
+		if (registry == null || executor == null || !sharedRegistrySyncRunning.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (HostRegistry.Record record : registry.sync(hostRegistry.getRecords())) {
+							// a host is seen again when its DocRoot or aliases change. It only counts as seen once it was
+							// created, so a host which failed (eg. DocRoot not mounted yet, or maxContexts reached) is tried again.
+							String seenKey = record.name + "\t" + record.docRoot + "\t" + new TreeSet<String>(record.aliases);
+							if (sharedHostsSeen.contains(seenKey)) {
+								continue;
 							}
-						} else {
-							if (loggingEnabled) {
-								System.out.println("[mod_cfml]["+logNr+"] ERROR: Context files do not exist! Will continue, but likely to result in error.");
+							int logNr = nextLogNr();
+							String error = provisionHost(engine, record.name, record.aliases, record.docRoot, logNr);
+							if (error == null) {
+								sharedHostsSeen.add(seenKey);
+							} else {
+								ValveLog.warn(logNr, "Could not create host [{}] from the shared registry: {}", record.name, error);
 							}
 						}
-					}
-
-// STEP 6 - remember the amount of created contexts
-					if (!addAsAlias) {
-						throttleValue += 1;
+					} catch (Exception e) {
+						ValveLog.error(0, "Could not synchronize with the shared host registry: {}", e);
+					} finally {
+						sharedRegistrySyncRunning.set(false);
 					}
 				}
+			});
+		} catch (RejectedExecutionException e) {
+			// the valve is stopping
+			sharedRegistrySyncRunning.set(false);
+		}
+	}
+
+
+	// Removes the least recently used hosts we created, when there are more than maxActiveContexts of them,
+	// and hosts which were not used for contextIdleTimeout seconds. A next request for such a host just creates it again.
+	private void removeIdleHosts(Engine engine) {
+		if (maxActiveContexts <= 0 && contextIdleTimeout <= 0) {
+			return;
+		}
+		List<HostRegistry.Record> activeRecords = new ArrayList<HostRegistry.Record>();
+		for (HostRegistry.Record record : hostRegistry.getRecords()) {
+			// the registry can also name a host from server.xml, eg. after it was moved there
+			if (isCreatedHost(hostIndex.findHost(record.name))) {
+				activeRecords.add(record);
+			}
+		}
+		// least recently used first
+		Collections.sort(activeRecords, new Comparator<HostRegistry.Record>() {
+			@Override
+			public int compare(HostRegistry.Record a, HostRegistry.Record b) {
+				return a.lastHit < b.lastHit ? -1 : (a.lastHit > b.lastHit ? 1 : 0);
+			}
+		});
+
+		int tooMany = maxActiveContexts > 0 ? activeRecords.size() - maxActiveContexts : 0;
+		long idleSince = System.currentTimeMillis() - contextIdleTimeout * 1000L;
+		for (HostRegistry.Record record : activeRecords) {
+			boolean idle = contextIdleTimeout > 0 && record.lastHit < idleSince;
+			if (tooMany <= 0 && !idle) {
+				break;
+			}
+			if (removeHost(engine, record.name)) {
+				tooMany--;
 			}
 		}
+	}
 
-// STEP 7 - call ourselves again so we bypass localhost
-		doRedirect(tcURI, tcURIParams, response, loggingEnabled, logNr, responseCode);
+
+	// stops and removes a host we created, and hands back its maxContexts slot
+	private boolean removeHost(Engine engine, String hostName) {
+		synchronized(getHostLock(hostName)) {
+			Container host = engine.findChild(hostName);
+			if (!isCreatedHost(host) || pendingHosts.containsKey(hostName)) {
+				return false;
+			}
+			ValveLog.info(0, "Removing unused host [{}]", hostName);
+			try {
+				engine.removeChild(host);
+				directDeployer.forget(hostName);
+				docRootHosts.values().remove(hostName);
+			} catch (RuntimeException e) {
+				ValveLog.error(0, "Could not remove host [{}]: {}", hostName, e);
+				return false;
+			}
+		}
+		releaseContextSlot();
+		return true;
+	}
+
+
+	// only the hosts created by this valve have its HostHitValve; hosts from server.xml are never removed
+	private boolean isCreatedHost(Container host) {
+		if (!(host instanceof StandardHost)) {
+			return false;
+		}
+		for (Valve valve : host.getPipeline().getValves()) {
+			if (valve instanceof HostHitValve) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	// removes a temporary host (see HostProvisioner.measureHostFootprint) without leaving anything behind
+	void discardHost(Engine engine, String hostName) {
+		removeHost(engine, hostName);
+		String catalinaBase = System.getProperty(Globals.CATALINA_BASE_PROP);
+		deleteDir(new File(catalinaBase + "/conf/Catalina/" + hostName));
+		deleteDir(new File(catalinaBase + "/work/Catalina/" + hostName));
+	}
+
+
+	// returns null if the host registry is not enabled
+	private File getHostRegistryFileObject() {
+		if (hostRegistryFile == null || hostRegistryFile.isEmpty()) {
+			return null;
+		}
+		return getBaseFile(hostRegistryFile);
+	}
+
+
+	// relative paths in the valve settings are relative to the Tomcat base directory
+	static File getBaseFile(String path) {
+		File file = new File(path);
+		if (!file.isAbsolute()) {
+			file = new File(System.getProperty(Globals.CATALINA_BASE_PROP), path);
+		}
+		return file;
+	}
+
+
+	private void saveHostRegistry(long minStatsInterval) {
+		File registryFile = getHostRegistryFileObject();
+		if (registryFile == null) {
+			return;
+		}
+		try {
+			hostRegistry.saveIfChanged(registryFile, minStatsInterval);
+		} catch (IOException e) {
+			ValveLog.error(0, "Could not save host registry {}: {}", registryFile, e);
+		}
+	}
+
+
+	// returns the lock which must be held while creating the Tomcat host with the given name.
+	// Hosts with the same name always get the same lock object.
+	private static Object getHostLock(String hostName) {
+		return hostLocks[(hostName.hashCode() & 0x7fffffff) % HOST_LOCK_STRIPES];
 	}
 
 
-	public static void doRedirect(String uri, String params, Response response, boolean loggingEnabled, int logNr, int responseCode)
+	public static void doRedirect(String uri, String params, Response response, int logNr, int responseCode)
 			throws IOException {
 		if (params == null) {
 			params = "";
 		}
 		String tcRedirectURL = uri + "?" + params;
 
-		if (loggingEnabled) {
-			System.out.println("[mod_cfml]["+logNr+"] INFO: Redirect URL => '" + tcRedirectURL + "'");
-		}
+		ValveLog.info(logNr, "Redirect URL => '{}'", tcRedirectURL);
 
 		response.sendRedirect(response.encodeRedirectUrl(tcRedirectURL), responseCode);
 	}
 
 
+	// removes an old config or work directory; with asyncDirCleanup, only the renaming happens right now
+	private void removeDir(File dir, int logNr) {
+		if (asyncDirCleanup) {
+			if (DirCleaner.moveAway(dir)) {
+				return;
+			}
+			ValveLog.info(logNr, "Could not rename {}; deleting it right away", dir);
+		}
+		deleteDir(dir);
+	}
+
+
 	// create a seperate method for removing directories so we can call it
 	// as many times as we may need it (including looping over itself).
 	public static boolean deleteDir(File dir) {
@@ -570,14 +1577,22 @@ public class core extends ValveBase implements Serializable {
 	}
 
 	public static void handleError(int statuscode, String msg, Response response, int logNr) throws ServletException, IOException {
-		System.out.println("[mod_cfml]["+logNr+"] ERROR (sent to client): " + statuscode + ": " + msg);
+		handleError(statuscode, msg, response, logNr, 0);
+	}
+
+	// retryAfter: seconds after which the client may try again, sent as Retry-After header if higher than 0
+	public static void handleError(int statuscode, String msg, Response response, int logNr, int retryAfter) throws ServletException, IOException {
+		ValveLog.error(logNr, "Error sent to client: {}: {}", statuscode, msg);
+		if (retryAfter > 0) {
+			response.setHeader("Retry-After", String.valueOf(retryAfter));
+		}
 		response.setContentType("text/html");
 		response.getWriter().write("<h3>Tomcat Mod_CFML error</h3><p>" + msg + "</p>");
 		response.setStatus(statuscode);
 	}
 
 
-	public static String removePortFromHost(String host, boolean loggingEnabled) {
+	public static String removePortFromHost(String host) {
 		if(host == null || ! host.contains(":")) {
 			return host;
 		}
@@ -587,20 +1602,107 @@ public class core extends ValveBase implements Serializable {
 		int colonPos = host.lastIndexOf(':');
 		String tcHostPort = host.substring(colonPos + 1);
 
-		if (! tcHostPort.matches("^[1-9][0-9]*$")) {
-			if (loggingEnabled) {
-				System.out.println("[mod_cfml] INFO: incoming host [" + host + "] seemed to contain a port definition (eg. ':8080'), but port was not numeric => " + tcHostPort);
-			}
+		if (! HostNames.isPortNumber(tcHostPort)) {
+			ValveLog.info(0, "incoming host [{}] seemed to contain a port definition (eg. ':8080'), but port was not numeric => {}", host, tcHostPort);
 			return host;
 		}
 
 		String newHost = host.substring(0, colonPos);
 
-		if (loggingEnabled) {
-			System.out.println("[mod_cfml] INFO: host ["+host+"] contains ':'. New value => " + newHost);
-		}
+		ValveLog.info(0, "host [{}] contains ':'. New value => {}", host, newHost);
 
 		return newHost;
 	}
 
+
+	// The outcome of a host creation, which other requests for the same host can wait for.
+	static final class PendingHost {
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile int errorCode = 0;
+		private volatile String errorMessage = null;
+		private volatile int retryAfter = 0;
+
+		void setError(int errorCode, String errorMessage, int retryAfter) {
+			this.errorMessage = errorMessage;
+			this.retryAfter = retryAfter;
+			this.errorCode = errorCode;
+		}
+
+		int getErrorCode() {
+			return errorCode;
+		}
+
+		String getErrorMessage() {
+			return errorMessage;
+		}
+
+		int getRetryAfter() {
+			return retryAfter;
+		}
+
+		void finish() {
+			done.countDown();
+		}
+
+		// returns false if the host creation did not finish within the given time
+		boolean await(long timeoutMillis) {
+			try {
+				return done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+	}
+
+
+	// The settings which requests use, checked and corrected once when a setting changes. A new instance is published
+	// for every change, so requests can read all of them without locking, and always see a consistent set.
+	static final class Config {
+		final long waitForContextMillis;
+		final int docRootCacheTime;
+		final int docRootCacheSize;
+		final int timeBetweenContexts;
+		final int contextBurst;
+		final int timeBetweenParentContexts;
+		final int maxContexts;
+		// null if no shared key is used
+		final String sharedKey;
+		final int responseCode;
+		final boolean invalidResponseCode;
+		final boolean serverTiming;
+		final boolean consolidateDocRoots;
+		// the query string parameter we add to recognize redirect loops
+		final String redirectMarker;
+
+		Config(core valve) {
+			waitForContextMillis = Math.max(0, valve.waitForContext) * 1000L;
+			docRootCacheTime = Math.max(0, valve.docRootCacheTime);
+			docRootCacheSize = Math.max(0, valve.docRootCacheSize);
+			timeBetweenContexts = valve.timeBetweenContexts;
+			contextBurst = Math.max(1, valve.contextBurst);
+			timeBetweenParentContexts = valve.timeBetweenParentContexts;
+			maxContexts = valve.maxContexts;
+			sharedKey = (valve.sharedKey == null || valve.sharedKey.isEmpty()) ? null : valve.sharedKey;
+			// only going to allow 301 to 308 for our purposes
+			invalidResponseCode = valve.responseCode < 301 || valve.responseCode > 308;
+			responseCode = invalidResponseCode ? 307 : valve.responseCode;
+			serverTiming = valve.serverTiming;
+			consolidateDocRoots = valve.consolidateDocRoots;
+			redirectMarker = "&" + (redirectKey == null || redirectKey.isEmpty() ? "__" : redirectKey);
+		}
+	}
+
+
+	// Why reserveContextSlot refused to create a context. retryAfter is in seconds, 0 if unknown.
+	static final class SlotRefusal {
+		final String message;
+		final int retryAfter;
+
+		SlotRefusal(String message, int retryAfter) {
+			this.message = message;
+			this.retryAfter = retryAfter;
+		}
+	}
+
 }